@@ -0,0 +1,111 @@
+package org.kaivos.nept.parser.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.kaivos.nept.parser.OperatorLibrary;
+import org.kaivos.nept.parser.OperatorPrecedenceParser;
+import org.kaivos.nept.parser.OperatorTable;
+import org.kaivos.nept.parser.Parser;
+import org.kaivos.nept.parser.TokenList;
+import org.kaivos.nept.parser.TokenScanner;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the throughput of {@link OperatorPrecedenceParser#parse(TokenList)} and of the frozen
+ * {@link OperatorTable} on the workloads that consist of expressions
+ * 
+ * @author Iikka Hauhio
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OperatorParserBenchmark {
+
+	@Param({ "OPERATORS", "LONG_LINE", "TINY" })
+	private Workload workload;
+
+	private TokenList[] lists;
+	private OperatorPrecedenceParser<Integer> parser, stackParser;
+	private OperatorTable<Integer> table;
+
+	/* The parser of the expressions inside parentheses */
+	private Parser<Integer> active;
+
+	/**
+	 * Tokenizes the expressions, one per line, and creates the parsers
+	 */
+	@Setup
+	public void setup() {
+		TokenScanner scanner = Workload.scanner();
+		List<TokenList> expressions = new ArrayList<>();
+		for (String source : workload.sources())
+			for (String line : source.split("\n"))
+				expressions.add(scanner.tokenize(line, "<benchmark>"));
+		lists = expressions.toArray(new TokenList[0]);
+
+		OperatorLibrary<Integer> library = new OperatorLibrary<>(tl -> primary(tl));
+		library.add("+", (a, b) -> a + b);
+		library.add("-", (a, b) -> a - b);
+		library.increaseLevel();
+		library.add("*", (a, b) -> a * b);
+		library.add("/", (a, b) -> b == 0 ? a : a / b);
+		library.add("%", (a, b) -> b == 0 ? a : a % b);
+		parser = OperatorPrecedenceParser.fromLibrary(library);
+		stackParser = OperatorPrecedenceParser.fromLibrary(library).useExplicitStack(true);
+		table = library.freeze(scanner);
+	}
+
+	private Integer primary(TokenList tl) {
+		if (tl.acceptIfNext("(")) {
+			Integer value = active.parse(tl);
+			tl.accept(")");
+			return value;
+		}
+		return Integer.parseInt(tl.nextString());
+	}
+
+	/**
+	 * Parses the expressions with the recursive operator precedence parser
+	 * 
+	 * @param bh The blackhole
+	 */
+	@Benchmark
+	public void precedenceParser(Blackhole bh) {
+		parseAll(parser, bh);
+	}
+
+	/**
+	 * Parses the expressions with the explicit-stack operator precedence parser
+	 * 
+	 * @param bh The blackhole
+	 */
+	@Benchmark
+	public void explicitStack(Blackhole bh) {
+		parseAll(stackParser, bh);
+	}
+
+	/**
+	 * Parses the expressions with the frozen operator table
+	 * 
+	 * @param bh The blackhole
+	 */
+	@Benchmark
+	public void frozenTable(Blackhole bh) {
+		parseAll(table, bh);
+	}
+
+	private void parseAll(Parser<Integer> p, Blackhole bh) {
+		active = p;
+		for (TokenList tl : lists) {
+			tl.reset();
+			bh.consume(p.parse(tl));
+		}
+	}
+}
@@ -0,0 +1,57 @@
+package org.kaivos.nept.parser.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kaivos.nept.parser.TokenScanner;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the throughput of {@link TokenScanner#tokenize(String, String)}
+ * 
+ * @author Iikka Hauhio
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScannerBenchmark {
+
+	@Param
+	private Workload workload;
+
+	private TokenScanner scanner;
+	private String[] sources;
+
+	/**
+	 * Generates the sources
+	 */
+	@Setup
+	public void setup() {
+		scanner = Workload.scanner();
+		sources = workload.sources();
+	}
+
+	/**
+	 * Tokenizes the sources to token lists
+	 * 
+	 * @param bh The blackhole
+	 */
+	@Benchmark
+	public void tokenize(Blackhole bh) {
+		for (String source : sources) bh.consume(scanner.tokenize(source, "<benchmark>"));
+	}
+
+	/**
+	 * Tokenizes the sources to a sink, without creating tokens
+	 * 
+	 * @param bh The blackhole
+	 */
+	@Benchmark
+	public void tokenizeToSink(Blackhole bh) {
+		for (String source : sources) bh.consume(scanner.tokenize(source, "<benchmark>", (kind, buffer, start, end, line) -> {}));
+	}
+}
@@ -0,0 +1,62 @@
+package org.kaivos.nept.parser.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.kaivos.nept.parser.TokenList;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the throughput of the cursor methods of {@link TokenList} used by hand-written parsers
+ * 
+ * @author Iikka Hauhio
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TokenListBenchmark {
+
+	@Param
+	private Workload workload;
+
+	private TokenList[] lists;
+
+	/**
+	 * Tokenizes the sources
+	 */
+	@Setup
+	public void setup() {
+		String[] sources = workload.sources();
+		lists = new TokenList[sources.length];
+		for (int i = 0; i < sources.length; i++) lists[i] = Workload.scanner().tokenize(sources[i], "<benchmark>");
+	}
+
+	/**
+	 * Walks through the tokens, testing each of them with <code>isNext</code> and consuming it with
+	 * <code>accept</code> or <code>next</code>
+	 * 
+	 * @return The number of punctuation tokens
+	 */
+	@Benchmark
+	public int isNextAccept() {
+		int count = 0;
+		for (TokenList tl : lists) {
+			tl.reset();
+			while (!tl.isNext("<EOF>")) {
+				if (tl.isNext("(")) {
+					tl.accept("(");
+					count++;
+				} else if (tl.isNext(";", "=")) {
+					tl.accept(";", "=");
+					count++;
+				} else {
+					tl.next();
+				}
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,168 @@
+package org.kaivos.nept.parser.benchmark;
+
+import java.util.Random;
+
+import org.kaivos.nept.parser.TokenScanner;
+
+/**
+ * The generated sources the benchmarks are run on. The sources are the same on every run.
+ * 
+ * @author Iikka Hauhio
+ *
+ */
+public enum Workload {
+
+	/**
+	 * Arithmetic expressions with an operator between every two numbers, one per line
+	 */
+	OPERATORS {
+		@Override
+		String[] generate(Random random) {
+			StringBuilder sb = new StringBuilder();
+			while (sb.length() < SIZE) {
+				expression(random, sb, 40);
+				sb.append('\n');
+			}
+			return new String[] { sb.toString() };
+		}
+	},
+
+	/**
+	 * Declarations with block and line comments longer than the code
+	 */
+	COMMENTS {
+		@Override
+		String[] generate(Random random) {
+			StringBuilder sb = new StringBuilder();
+			for (int n = 0; sb.length() < SIZE; n++) {
+				sb.append("/* ");
+				words(random, sb, 30);
+				sb.append("\n * ");
+				words(random, sb, 30);
+				sb.append(" */\nvar x").append(n).append(" = ").append(random.nextInt(1000)).append("; // ");
+				words(random, sb, 10);
+				sb.append('\n');
+			}
+			return new String[] { sb.toString() };
+		}
+	},
+
+	/**
+	 * A configuration file whose values are string literals with escape codes
+	 */
+	STRINGS {
+		@Override
+		String[] generate(Random random) {
+			StringBuilder sb = new StringBuilder();
+			for (int n = 0; sb.length() < SIZE; n++) {
+				sb.append("key").append(n).append(" = \"");
+				words(random, sb, 8);
+				sb.append("\\n\\t\\\"");
+				words(random, sb, 4);
+				sb.append("\\\"\";\n");
+			}
+			return new String[] { sb.toString() };
+		}
+	},
+
+	/**
+	 * One expression without line breaks
+	 */
+	LONG_LINE {
+		@Override
+		String[] generate(Random random) {
+			StringBuilder sb = new StringBuilder();
+			while (sb.length() < SIZE) {
+				expression(random, sb, 40);
+				sb.append(" + ");
+			}
+			sb.append('0');
+			return new String[] { sb.toString() };
+		}
+	},
+
+	/**
+	 * Many sources of a few tokens each
+	 */
+	TINY {
+		@Override
+		String[] generate(Random random) {
+			String[] sources = new String[SIZE / 16];
+			for (int i = 0; i < sources.length; i++) {
+				StringBuilder sb = new StringBuilder();
+				expression(random, sb, 1 + random.nextInt(3));
+				sources[i] = sb.toString();
+			}
+			return sources;
+		}
+	},
+
+	/**
+	 * Identifiers, comments and strings in Finnish, Greek, Japanese and emoji
+	 */
+	NON_ASCII {
+		@Override
+		String[] generate(Random random) {
+			String[] names = { "m\u00e4\u00e4r\u00e4", "hinta", "\u00e4\u00e4nestys", "\u03bb\u03cc\u03b3\u03bf\u03c2", "\u03c0\u03bb\u03ae\u03b8\u03bf\u03c2", "\u540d\u524d", "\u5024\u6bb5", "\u6570\u91cf" };
+			String[] texts = { "hyv\u00e4\u00e4 p\u00e4iv\u00e4\u00e4", "\u03ba\u03b1\u03bb\u03b7\u03bc\u03ad\u03c1\u03b1 \u03ba\u03cc\u03c3\u03bc\u03b5", "\u3053\u3093\u306b\u3061\u306f\u4e16\u754c", "\ud83d\ude00\ud83d\ude80" };
+			StringBuilder sb = new StringBuilder();
+			while (sb.length() < SIZE) {
+				sb.append(names[random.nextInt(names.length)]).append(" = \"").append(texts[random.nextInt(texts.length)])
+					.append("\" + ").append(names[random.nextInt(names.length)]).append(" * ").append(random.nextInt(100))
+					.append("; /* ").append(texts[random.nextInt(texts.length)]).append(" */\n");
+			}
+			return new String[] { sb.toString() };
+		}
+	};
+
+	/* The approximate number of characters of a workload */
+	static final int SIZE = 1 << 18;
+
+	private static final String OPERATORS_TEXT = "+-*/%";
+	private static final String[] WORDS = { "the", "token", "scanner", "reads", "a", "source", "and", "returns", "tokens" };
+
+	abstract String[] generate(Random random);
+
+	/**
+	 * Generates the sources
+	 * 
+	 * @return The sources
+	 */
+	public String[] sources() {
+		return generate(new Random(ordinal()));
+	}
+
+	/**
+	 * Creates the scanner used for all workloads
+	 * 
+	 * @return The scanner
+	 */
+	public static TokenScanner scanner() {
+		return new TokenScanner()
+			.addOperators("+-*/%()=;")
+			.addCommentRule("/*", "*/")
+			.addCommentRule("//", "\n")
+			.addStringRule('"', '"', '\\')
+			.addEscapeCode('n', "\n")
+			.addEscapeCode('t', "\t")
+			.addEscapeCode('"', "\"")
+			.appendOnEOF("<EOF>")
+			.compile();
+	}
+
+	/* An expression of numbers and operators, with parentheses around some operands */
+	private static void expression(Random random, StringBuilder sb, int operands) {
+		for (int i = 0; i < operands; i++) {
+			if (i > 0) sb.append(' ').append(OPERATORS_TEXT.charAt(random.nextInt(OPERATORS_TEXT.length()))).append(' ');
+			if (random.nextInt(8) == 0) sb.append('(').append(1 + random.nextInt(99)).append(" + ").append(1 + random.nextInt(99)).append(')');
+			else sb.append(1 + random.nextInt(999));
+		}
+	}
+
+	private static void words(Random random, StringBuilder sb, int count) {
+		for (int i = 0; i < count; i++) {
+			if (i > 0) sb.append(' ');
+			sb.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package org.kaivos.nept.parser;
+
+import java.util.Arrays;
+
+/**
+ * The positions of matching brackets in a token storage, built in one pass over the tokens
+ *
+ * @author Iikka Hauhio
+ *
+ * @see TokenList#indexBrackets(String...)
+ */
+final class BracketIndex {
+
+	/* The index of the matching bracket of each token, or -1 */
+	private final int[] matches;
+	/* The index of the pair of each opening bracket, or -1 */
+	private final byte[] opening;
+	final String[] opens;
+
+	BracketIndex(TokenStorage tokens, String... pairs) {
+		if (pairs.length == 0 || pairs.length % 2 != 0 || pairs.length / 2 > Byte.MAX_VALUE)
+			throw new IllegalArgumentException("Expected pairs of opening and closing brackets");
+		opens = new String[pairs.length / 2];
+		for (int k = 0; k < opens.length; k++) opens[k] = pairs[2 * k];
+
+		int size = tokens.size();
+		matches = new int[size];
+		opening = new byte[size];
+		Arrays.fill(matches, -1);
+		Arrays.fill(opening, (byte) -1);
+		int[] stack = new int[16];
+		int depth = 0;
+		for (int i = 0; i < size; i++) {
+			if (tokens.kind(i) == Token.STRING) continue;
+			for (int k = 0; k < pairs.length; k += 2) {
+				if (tokens.textEquals(i, pairs[k])) {
+					if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+					stack[depth++] = i;
+					opening[i] = (byte) (k / 2);
+					break;
+				}
+				if (tokens.textEquals(i, pairs[k+1])) {
+					/* A closing bracket matches the innermost opening bracket of the same pair, if it is on top */
+					if (depth > 0 && opening[stack[depth-1]] == k / 2) {
+						int open = stack[--depth];
+						matches[open] = i;
+						matches[i] = open;
+					}
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests if a token is an opening bracket
+	 *
+	 * @param index The index of the token
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	boolean isOpening(int index) {
+		return index >= 0 && index < opening.length && opening[index] >= 0;
+	}
+
+	/**
+	 * Returns the index of the matching bracket of a token
+	 *
+	 * @param index The index of the token
+	 * @return The index of the matching bracket, or -1 if the token is not a matched bracket
+	 */
+	int match(int index) {
+		return index >= 0 && index < matches.length ? matches[index] : -1;
+	}
+}
@@ -0,0 +1,200 @@
+package org.kaivos.nept.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Writes the class files of the classes generated at run time by {@link MatcherGenerator}
+ * and {@link ExpressionGenerator}, and defines them in this package.
+ *
+ * The classes have version 49 (Java 5), so the methods do not need stack map frames.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+final class ClassFileWriter {
+
+	static final int MAX_CODE_LENGTH = 65535;
+
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final HashMap<String, Integer> poolIndices = new HashMap<>();
+	private int poolCount = 1;
+
+	private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private int methodCount;
+
+	/* Constant pool */
+
+	private int constant(String key, byte[] entry, int size) {
+		Integer index = poolIndices.get(key);
+		if (index == null) {
+			pool.write(entry, 0, entry.length);
+			poolIndices.put(key, index = poolCount);
+			poolCount += size;
+		}
+		return index;
+	}
+
+	int utf8(String text) {
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		entry.write(1);
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		u2(entry, bytes.length);
+		entry.write(bytes, 0, bytes.length);
+		return constant("U" + text, entry.toByteArray(), 1);
+	}
+
+	int classConstant(String name) {
+		int nameIndex = utf8(name);
+		return constant("C" + name, new byte[] { 7, (byte) (nameIndex >> 8), (byte) nameIndex }, 1);
+	}
+
+	private int memberConstant(int tag, String owner, String name, String type) {
+		int ownerIndex = classConstant(owner);
+		int nameIndex = utf8(name), typeIndex = utf8(type);
+		int nameAndType = constant("N" + name + " " + type, new byte[] { 12,
+				(byte) (nameIndex >> 8), (byte) nameIndex, (byte) (typeIndex >> 8), (byte) typeIndex }, 1);
+		return constant(tag + owner + "." + name + " " + type, new byte[] { (byte) tag,
+				(byte) (ownerIndex >> 8), (byte) ownerIndex, (byte) (nameAndType >> 8), (byte) nameAndType }, 1);
+	}
+
+	int fieldConstant(String owner, String name, String type) {
+		return memberConstant(9, owner, name, type);
+	}
+
+	int methodConstant(String owner, String name, String type) {
+		return memberConstant(10, owner, name, type);
+	}
+
+	int interfaceMethodConstant(String owner, String name, String type) {
+		return memberConstant(11, owner, name, type);
+	}
+
+	int intConstant(int value) {
+		return constant("I" + value, new byte[] { 3,
+				(byte) (value >> 24), (byte) (value >> 16), (byte) (value >> 8), (byte) value }, 1);
+	}
+
+	int doubleConstant(double value) {
+		long bits = Double.doubleToRawLongBits(value);
+		ByteArrayOutputStream entry = new ByteArrayOutputStream();
+		entry.write(6);
+		u4(entry, (int) (bits >> 32));
+		u4(entry, (int) bits);
+		/* Doubles take two entries of the pool */
+		return constant("D" + bits, entry.toByteArray(), 2);
+	}
+
+	/* Class file */
+
+	/**
+	 * Adds a method
+	 *
+	 * @param access The access flags
+	 * @param name The name
+	 * @param type The descriptor
+	 * @param maxStack The maximum size of the operand stack
+	 * @param maxLocals The number of local variable slots
+	 * @param code The bytecode
+	 */
+	void method(int access, String name, String type, int maxStack, int maxLocals, byte[] code) {
+		int nameIndex = utf8(name), typeIndex = utf8(type), codeName = utf8("Code");
+		u2(methods, access);
+		u2(methods, nameIndex);
+		u2(methods, typeIndex);
+		u2(methods, 1);
+		u2(methods, codeName);
+		u4(methods, 12 + code.length);
+		u2(methods, maxStack);
+		u2(methods, maxLocals);
+		u4(methods, code.length);
+		methods.write(code, 0, code.length);
+		u2(methods, 0); // exception table
+		u2(methods, 0); // attributes
+		methodCount++;
+	}
+
+	/**
+	 * Adds a constructor that calls the constructor of the superclass without arguments
+	 *
+	 * @param superName The internal name of the superclass
+	 */
+	void defaultConstructor(String superName) {
+		int superInit = methodConstant(superName, "<init>", "()V");
+		byte[] init = { 0x2a /* aload_0 */, (byte) 0xb7 /* invokespecial */,
+				(byte) (superInit >> 8), (byte) superInit, (byte) 0xb1 /* return */ };
+		method(0x0001, "<init>", "()V", 1, 1, init);
+	}
+
+	/**
+	 * Returns the class file of a public final class with the methods added so far
+	 *
+	 * @param name The internal name of the class
+	 * @param superName The internal name of the superclass
+	 * @return The class file
+	 */
+	byte[] toByteArray(String name, String superName) {
+		int thisClass = classConstant(name);
+		int superClass = classConstant(superName);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		u4(out, 0xCAFEBABE);
+		u2(out, 0);
+		u2(out, 49);
+		u2(out, poolCount);
+		byte[] poolBytes = pool.toByteArray();
+		out.write(poolBytes, 0, poolBytes.length);
+		u2(out, 0x0031); // public final super
+		u2(out, thisClass);
+		u2(out, superClass);
+		u2(out, 0); // interfaces
+		u2(out, 0); // fields
+		u2(out, methodCount);
+		byte[] methodBytes = methods.toByteArray();
+		out.write(methodBytes, 0, methodBytes.length);
+		u2(out, 0); // attributes
+		return out.toByteArray();
+	}
+
+	/**
+	 * Defines a class in this package with Lookup.defineHiddenClass (Java 15) or Lookup.defineClass (Java 9)
+	 *
+	 * @param bytes The class file
+	 * @return The class, or null if neither method is available
+	 * @throws ReflectiveOperationException if the class could not be defined
+	 */
+	static Class<?> define(byte[] bytes) throws ReflectiveOperationException {
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			Method defineHidden = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+					byte[].class, boolean.class, Array.newInstance(option, 0).getClass());
+			MethodHandles.Lookup hidden = (MethodHandles.Lookup) defineHidden.invoke(lookup,
+					bytes, true, Array.newInstance(option, 0));
+			return hidden.lookupClass();
+		} catch (ClassNotFoundException | NoSuchMethodException e) {}
+		try {
+			Method define = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+			return (Class<?>) define.invoke(lookup, bytes);
+		} catch (NoSuchMethodException e) {
+			/* A class loaded by another class loader could not access this package */
+			return null;
+		}
+	}
+
+	static void u2(ByteArrayOutputStream out, int value) {
+		out.write(value >> 8);
+		out.write(value);
+	}
+
+	static void u4(ByteArrayOutputStream out, int value) {
+		out.write(value >> 24);
+		out.write(value >> 16);
+		out.write(value >> 8);
+		out.write(value);
+	}
+}
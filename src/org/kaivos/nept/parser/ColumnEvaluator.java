@@ -0,0 +1,336 @@
+package org.kaivos.nept.parser;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Evaluates an {@link Expression} over whole columns of values at once.
+ *
+ * The tree is flattened to a postfix program, which is run for blocks of rows: each operator is one
+ * loop over the block, reading the columns and the results of earlier operators and writing its own
+ * results to a vector. Constants are scalar operands of the loops. The vectors are allocated once for each task
+ * and reused for all of its blocks. Nodes of other Expression subclasses are evaluated row by row. Large batches are split across the common fork-join
+ * pool. The evaluator can be used from multiple threads.
+ *
+ * <pre>
+ * ColumnEvaluator evaluator = new ColumnEvaluator(formula);
+ * evaluator.evaluate(new Object[] { prices, quantities }, totals);
+ * </pre>
+ *
+ * @author Iikka Hauhio
+ *
+ */
+public final class ColumnEvaluator {
+
+	/* The number of rows evaluated by one pass of the program */
+	private static final int BLOCK = 1024;
+	/* The minimum number of rows evaluated by a parallel task */
+	private static final int MIN_TASK = 1 << 16;
+
+	private static final int CONSTANT = 0, VARIABLE = 1, ARITHMETIC = 2, CALL = 3, FALLBACK = 4;
+
+	/* The program: the kind of each instruction and its argument, an index to the arrays below */
+	private final int[] kinds, args;
+	private final double[] constants;
+	private final List<DoubleBinaryOperator> handlers = new ArrayList<>();
+	private final List<Expression> fallbacks = new ArrayList<>();
+	private final int maxDepth;
+	/* The number of columns the variables of the expression read; nodes evaluated row by row read all columns */
+	private final int width;
+
+	/**
+	 * The constructor
+	 *
+	 * @param expression The expression
+	 */
+	public ColumnEvaluator(Expression expression) {
+		List<int[]> program = new ArrayList<>();
+		List<Double> constants = new ArrayList<>();
+		int depth = 0, maxDepth = 0, width = 0;
+
+		/* The nodes are visited in postfix order without recursion, so deep trees can be evaluated */
+		ArrayDeque<Expression> stack = new ArrayDeque<>();
+		ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+		stack.push(source(expression));
+		expanded.push(false);
+		while (!stack.isEmpty()) {
+			Expression e = stack.pop();
+			boolean children = expanded.pop();
+			Expression lhs = null, rhs = null;
+			if (e instanceof Expression.Arithmetic) {
+				lhs = ((Expression.Arithmetic) e).lhs;
+				rhs = ((Expression.Arithmetic) e).rhs;
+			} else if (e instanceof Expression.Call) {
+				lhs = ((Expression.Call) e).lhs;
+				rhs = ((Expression.Call) e).rhs;
+			}
+			if (lhs != null && !children) {
+				stack.push(e);
+				expanded.push(true);
+				stack.push(source(rhs));
+				expanded.push(false);
+				stack.push(source(lhs));
+				expanded.push(false);
+				continue;
+			}
+			if (e instanceof Expression.Constant) {
+				program.add(new int[] { CONSTANT, constants.size() });
+				constants.add(((Expression.Constant) e).value);
+				depth++;
+			} else if (e instanceof Expression.Variable) {
+				int slot = ((Expression.Variable) e).slot;
+				program.add(new int[] { VARIABLE, slot });
+				width = Math.max(width, slot + 1);
+				depth++;
+			} else if (e instanceof Expression.Arithmetic) {
+				program.add(new int[] { ARITHMETIC, ((Expression.Arithmetic) e).instruction });
+				depth--;
+			} else if (e instanceof Expression.Call) {
+				program.add(new int[] { CALL, handlers.size() });
+				handlers.add(((Expression.Call) e).handler);
+				depth--;
+			} else {
+				program.add(new int[] { FALLBACK, fallbacks.size() });
+				fallbacks.add(e);
+				depth++;
+			}
+			maxDepth = Math.max(maxDepth, depth);
+		}
+
+		kinds = new int[program.size()];
+		args = new int[program.size()];
+		for (int i = 0; i < kinds.length; i++) {
+			kinds[i] = program.get(i)[0];
+			args[i] = program.get(i)[1];
+		}
+		this.constants = new double[constants.size()];
+		for (int i = 0; i < this.constants.length; i++) this.constants[i] = constants.get(i);
+		this.maxDepth = maxDepth;
+		this.width = width;
+	}
+
+	/* Compiled expressions are evaluated by the program of their tree */
+	private static Expression source(Expression e) {
+		return e instanceof CompiledExpression ? ((CompiledExpression) e).source : e;
+	}
+
+	/**
+	 * Evaluates the expression for each row
+	 *
+	 * @param columns The values of the variables, indexed by their slots. Each column is a <code>double[]</code>
+	 * or a <code>long[]</code> and has at least as many rows as the result array.
+	 * @param result The array the values are stored to
+	 */
+	public void evaluate(Object[] columns, double[] result) {
+		int rows = result.length;
+		if (columns.length < width)
+			throw new IllegalArgumentException("the expression reads " + width + " columns, " + columns.length + " given");
+		for (Object column : columns) {
+			int length;
+			if (column instanceof double[]) length = ((double[]) column).length;
+			else if (column instanceof long[]) length = ((long[]) column).length;
+			else throw new IllegalArgumentException("columns must be double[] or long[]");
+			if (length < rows) throw new IllegalArgumentException("a column has " + length + " rows, " + rows + " needed");
+		}
+
+		int size = Math.max(MIN_TASK, rows / (ForkJoinPool.getCommonPoolParallelism() * 4) + 1);
+		/* Tasks start at the start of a block */
+		size = (size + BLOCK - 1) / BLOCK * BLOCK;
+		if (rows < 2 * size) {
+			run(columns, result, 0, rows);
+		} else {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			for (int from = 0; from < rows; from += size) {
+				int a = from, b = Math.min(rows, from + size);
+				tasks.add(ForkJoinPool.commonPool().submit(() -> run(columns, result, a, b)));
+			}
+			for (ForkJoinTask<?> task : tasks) task.join();
+		}
+	}
+
+	/**
+	 * Evaluates the expression for each row
+	 *
+	 * @param columns The values of the variables, indexed by their slots
+	 * @return The values
+	 */
+	public double[] evaluate(double[]... columns) {
+		int rows = Integer.MAX_VALUE;
+		for (double[] column : columns) rows = Math.min(rows, column.length);
+		double[] result = new double[columns.length == 0 ? 0 : rows];
+		evaluate((Object[]) columns, result);
+		return result;
+	}
+
+	/**
+	 * The vectors used by one task
+	 */
+	private static final class Vectors {
+
+		/* The results of the instructions at each depth of the stack */
+		final double[][] stack;
+		/* The operands on the stack, which are vectors or double columns starting at an offset,
+		   or null for the scalars */
+		final double[][] arrays;
+		final int[] offsets;
+		final double[] scalars;
+		/* The values of one row, given to the nodes evaluated row by row */
+		final double[] row;
+
+		Vectors(int maxDepth, int rows, int columns) {
+			stack = new double[maxDepth][Math.min(BLOCK, rows)];
+			arrays = new double[maxDepth][];
+			offsets = new int[maxDepth];
+			scalars = new double[maxDepth];
+			row = new double[columns];
+		}
+	}
+
+	private void run(Object[] columns, double[] result, int from, int to) {
+		Vectors v = new Vectors(maxDepth, to - from, columns.length);
+		double[][] stack = v.stack, arrays = v.arrays;
+		int[] offsets = v.offsets;
+		double[] scalars = v.scalars;
+		for (int start = from; start < to; start += BLOCK) {
+			int n = Math.min(BLOCK, to - start);
+			int sp = 0;
+			for (int pc = 0; pc < kinds.length; pc++) {
+				int arg = args[pc];
+				switch (kinds[pc]) {
+				case CONSTANT:
+					arrays[sp] = null;
+					scalars[sp++] = constants[arg];
+					break;
+				case VARIABLE:
+					Object column = columns[arg];
+					if (column instanceof double[]) {
+						arrays[sp] = (double[]) column;
+						offsets[sp++] = start;
+					} else {
+						long[] values = (long[]) column;
+						double[] out = stack[sp];
+						for (int i = 0; i < n; i++) out[i] = values[start + i];
+						arrays[sp] = out;
+						offsets[sp++] = 0;
+					}
+					break;
+				case ARITHMETIC: {
+					sp--;
+					double[] a = arrays[sp - 1], b = arrays[sp];
+					if (a == null && b == null) {
+						scalars[sp - 1] = arithmetic(arg, scalars[sp - 1], scalars[sp]);
+						break;
+					}
+					double[] out = stack[sp - 1];
+					if (a == null) arithmetic(arg, scalars[sp - 1], b, offsets[sp], out, n);
+					else if (b == null) arithmetic(arg, a, offsets[sp - 1], scalars[sp], out, n);
+					else arithmetic(arg, a, offsets[sp - 1], b, offsets[sp], out, n);
+					arrays[sp - 1] = out;
+					offsets[sp - 1] = 0;
+					break;
+				}
+				case CALL: {
+					sp--;
+					double[] out = stack[sp - 1], a = arrays[sp - 1], b = arrays[sp];
+					int ao = offsets[sp - 1], bo = offsets[sp];
+					double x = scalars[sp - 1], y = scalars[sp];
+					DoubleBinaryOperator handler = handlers.get(arg);
+					for (int i = 0; i < n; i++) out[i] = handler.applyAsDouble(a == null ? x : a[ao + i], b == null ? y : b[bo + i]);
+					arrays[sp - 1] = out;
+					offsets[sp - 1] = 0;
+					break;
+				}
+				default: {
+					Expression node = fallbacks.get(arg);
+					double[] out = stack[sp];
+					double[] row = v.row;
+					for (int i = 0; i < n; i++) {
+						for (int c = 0; c < columns.length; c++) {
+							Object values = columns[c];
+							row[c] = values instanceof double[] ? ((double[]) values)[start + i] : ((long[]) values)[start + i];
+						}
+						out[i] = node.evaluate(row);
+					}
+					arrays[sp] = out;
+					offsets[sp++] = 0;
+				}
+				}
+			}
+			if (arrays[0] == null) Arrays.fill(result, start, start + n, scalars[0]);
+			else System.arraycopy(arrays[0], offsets[0], result, start, n);
+		}
+	}
+
+	/* One loop for each operator, so that the JIT compiler can vectorize them */
+	private static void arithmetic(int instruction, double[] a, int ao, double[] b, int bo, double[] out, int n) {
+		switch (instruction) {
+		case 0:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] + b[bo + i];
+			break;
+		case 1:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] - b[bo + i];
+			break;
+		case 2:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] * b[bo + i];
+			break;
+		case 3:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] / b[bo + i];
+			break;
+		default:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] % b[bo + i];
+		}
+	}
+
+	private static void arithmetic(int instruction, double x, double[] b, int bo, double[] out, int n) {
+		switch (instruction) {
+		case 0:
+			for (int i = 0; i < n; i++) out[i] = x + b[bo + i];
+			break;
+		case 1:
+			for (int i = 0; i < n; i++) out[i] = x - b[bo + i];
+			break;
+		case 2:
+			for (int i = 0; i < n; i++) out[i] = x * b[bo + i];
+			break;
+		case 3:
+			for (int i = 0; i < n; i++) out[i] = x / b[bo + i];
+			break;
+		default:
+			for (int i = 0; i < n; i++) out[i] = x % b[bo + i];
+		}
+	}
+
+	private static void arithmetic(int instruction, double[] a, int ao, double y, double[] out, int n) {
+		switch (instruction) {
+		case 0:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] + y;
+			break;
+		case 1:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] - y;
+			break;
+		case 2:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] * y;
+			break;
+		case 3:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] / y;
+			break;
+		default:
+			for (int i = 0; i < n; i++) out[i] = a[ao + i] % y;
+		}
+	}
+
+	private static double arithmetic(int instruction, double x, double y) {
+		switch (instruction) {
+		case 0: return x + y;
+		case 1: return x - y;
+		case 2: return x * y;
+		case 3: return x / y;
+		default: return x % y;
+		}
+	}
+}
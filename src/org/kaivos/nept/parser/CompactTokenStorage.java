@@ -0,0 +1,409 @@
+package org.kaivos.nept.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Tokens stored as offsets to the source they were read from. Token objects and the
+ * texts of the tokens are created only when they are requested, and line numbers are
+ * resolved from an index of line starts built on the first request.
+ * 
+ * @author Iikka Hauhio
+ *
+ */
+final class CompactTokenStorage extends TokenStorage {
+
+	private final ScanInput source;
+	private final String file;
+	private final int firstLine;
+	/* The canonical texts of the kinds */
+	private final String[] kindTexts;
+
+	private int size = 0;
+	private int[] starts;
+	/* The end offset, or -1-i if the text of the token is extras[i] */
+	private int[] ends;
+	private int[] kinds;
+	/* Texts (strings), tokens and undecoded string literals (Escaped) not found in the source */
+	private final ArrayList<Object> extras = new ArrayList<>();
+	/* true if tokens have been appended with add(Token), after which the offsets are not in order */
+	private boolean appended = false;
+
+	private volatile int[] lineStarts;
+
+	/* The old tokens compared to the new ones during a rescan, see retokenize() */
+	private CompactTokenStorage resync;
+	private int resyncFrom, resyncDelta;
+	/* The index of the first new token equal to an old token, the index of that old token
+	 * and the number of extras before the new token */
+	private int resyncIndex = -1, resyncOld, resyncExtras;
+
+	CompactTokenStorage(ScanInput source, String file, int firstLine, String[] kindTexts) {
+		this(source, file, firstLine, kindTexts, 64);
+	}
+
+	private CompactTokenStorage(ScanInput source, String file, int firstLine, String[] kindTexts, int capacity) {
+		starts = new int[capacity];
+		ends = new int[capacity];
+		kinds = new int[capacity];
+		this.source = source;
+		this.file = file;
+		this.firstLine = firstLine;
+		this.kindTexts = kindTexts;
+	}
+
+	private void push(int start, int end, int kind) {
+		if (resync != null && resyncIndex < 0 && start >= resyncFrom) checkResync(start, kind);
+		if (size == starts.length) {
+			starts = Arrays.copyOf(starts, size * 2);
+			ends = Arrays.copyOf(ends, size * 2);
+			kinds = Arrays.copyOf(kinds, size * 2);
+		}
+		starts[size] = start;
+		ends[size] = end;
+		kinds[size] = kind;
+		size++;
+	}
+
+	private void checkIndex(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+	}
+
+	@Override
+	int size() {
+		return size;
+	}
+
+	@Override
+	int firstLine() {
+		return firstLine;
+	}
+
+	@Override
+	Token get(int index) {
+		checkIndex(index);
+		if (ends[index] < 0) {
+			Object extra = extras.get(-1 - ends[index]);
+			if (extra instanceof Token) return (Token) extra;
+		}
+		return new CompactToken(index);
+	}
+
+	/* Returns the text stored in extras for a token, decoding it if needed */
+	private String extraText(int index) {
+		int extraIndex = -1 - ends[index];
+		Object extra = extras.get(extraIndex);
+		if (extra instanceof Escaped) {
+			Escaped escaped = (Escaped) extra;
+			String text = escaped.automaton.decode(source, starts[index], starts[index] + escaped.length, escaped.rule);
+			extras.set(extraIndex, text);
+			return text;
+		}
+		return extra instanceof Token ? ((Token) extra).getToken() : (String) extra;
+	}
+
+	@Override
+	int kind(int index) {
+		checkIndex(index);
+		return kinds[index];
+	}
+
+	@Override
+	String getString(int index) {
+		checkIndex(index);
+		int end = ends[index];
+		if (end >= 0) {
+			int kind = kinds[index];
+			return kind > Token.STRING ? kindTexts[kind] : source.substring(starts[index], end);
+		}
+		return extraText(index);
+	}
+
+	@Override
+	boolean textEquals(int index, String text) {
+		if (index < 0 || index >= size) return false;
+		int start = starts[index], end = ends[index];
+		if (end < 0 || kinds[index] > Token.STRING) return getString(index).equals(text);
+		if (end - start != text.length()) return false;
+		for (int i = 0; i < text.length(); i++)
+			if (source.charAt(start + i) != text.charAt(i)) return false;
+		return true;
+	}
+
+	@Override
+	void add(Token token) {
+		appended = true;
+		extras.add(token);
+		push(-1, -extras.size(), token.getKind());
+	}
+
+	@Override
+	void addSpan(ScanInput in, int start, int end, int kind) {
+		push(start, end, kind);
+	}
+
+	@Override
+	void addText(ScanInput in, int pos, String text, int kind) {
+		extras.add(text);
+		push(pos, -extras.size(), kind);
+	}
+
+	@Override
+	void addEscaped(ScanInput in, int start, int end, ScannerAutomaton automaton, int rule) {
+		extras.add(new Escaped(automaton, rule, end - start));
+		push(start, -extras.size(), Token.STRING);
+	}
+
+	/**
+	 * Appends the tokens of another storage that was read from the same source
+	 * 
+	 * @param other The storage
+	 */
+	void addAll(CompactTokenStorage other) {
+		addRange(other, 0, other.size, 0);
+	}
+
+	/**
+	 * Appends the tokens of another storage that was read from the same source and that start before a position
+	 * 
+	 * @param other The storage
+	 * @param pos The position
+	 */
+	void addBefore(CompactTokenStorage other, int pos) {
+		addRange(other, 0, other.lowerBound(pos), 0);
+	}
+
+	/* Appends the tokens from index from to index to of another storage, moving their offsets by shift */
+	private void addRange(CompactTokenStorage other, int from, int to, int shift) {
+		int count = to - from;
+		int capacity = starts.length;
+		while (capacity < size + count) capacity *= 2;
+		if (capacity != starts.length) {
+			starts = Arrays.copyOf(starts, capacity);
+			ends = Arrays.copyOf(ends, capacity);
+			kinds = Arrays.copyOf(kinds, capacity);
+		}
+		System.arraycopy(other.kinds, from, kinds, size, count);
+		System.arraycopy(other.starts, from, starts, size, count);
+		System.arraycopy(other.ends, from, ends, size, count);
+		if (shift != 0) {
+			for (int i = size; i < size + count; i++) {
+				starts[i] += shift;
+				if (ends[i] >= 0) ends[i] += shift;
+			}
+		}
+		/* Texts not found in the source are copied to this storage */
+		if (!other.extras.isEmpty()) {
+			for (int i = 0; i < count; i++) {
+				int end = other.ends[from + i];
+				if (end < 0) {
+					extras.add(other.extras.get(-1 - end));
+					ends[size + i] = -extras.size();
+				}
+			}
+		}
+		appended |= other.appended;
+		size += count;
+	}
+
+	/* Tests if a token is outside string literals */
+	private boolean isTopLevel(int index) {
+		return kinds[index] != Token.STRING && (index == 0 || kinds[index-1] != Token.STRING);
+	}
+
+	/* Compares a new token to the old tokens, see retokenize() */
+	private void checkResync(int start, int kind) {
+		if (kind == Token.STRING || size > 0 && kinds[size-1] == Token.STRING) return;
+		int old = resync.indexOfTopLevel(start - resyncDelta);
+		if (old >= 0) {
+			resyncIndex = size;
+			resyncOld = old;
+			resyncExtras = extras.size();
+		}
+	}
+
+	/* Returns the index of the token outside string literals starting at pos, or -1 */
+	private int indexOfTopLevel(int pos) {
+		for (int i = lowerBound(pos); i < size && starts[i] == pos; i++)
+			if (isTopLevel(i)) return i;
+		return -1;
+	}
+
+	/* Returns the index of the first token starting at or after pos */
+	private int lowerBound(int pos) {
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (starts[mid] < pos) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	@Override
+	boolean stopped() {
+		return resyncIndex >= 0;
+	}
+
+	/**
+	 * Reads tokens from an edited version of the source. Only the part of the source
+	 * that changed is read again, and the rest of the tokens are copied from this storage.
+	 * 
+	 * The scan starts at the last token outside string literals that lies far enough before the edit
+	 * that no rule could have looked at the edited text while reading the tokens before it.
+	 * Pattern rules can look at any later text, so with them the scan starts at the first token.
+	 * It stops when, after the edit, it reaches the start of an old token outside string literals.
+	 * As the scanner is then between two tokens in both scans and the rest of the source is the same,
+	 * the rest of the tokens are the old ones.
+	 * 
+	 * If this storage was not read from the old source with the same automaton, or tokens have been
+	 * appended to it, the whole new source is read.
+	 * 
+	 * @param automaton The automaton
+	 * @param oldText The old source
+	 * @param in The new source
+	 * @param offset The position of the edit
+	 * @param removed The number of characters removed at offset
+	 * @param inserted The number of characters inserted at offset
+	 * @return The new tokens
+	 */
+	CompactTokenStorage retokenize(ScannerAutomaton automaton, String oldText, ScanInput in, int offset, int removed, int inserted) {
+		CompactTokenStorage tokens = new CompactTokenStorage(in, file, firstLine, automaton.kindTexts, size + 64);
+		if (kindTexts != automaton.kindTexts || appended || !(source instanceof ScanInput.StringInput)
+				|| !source.toString().equals(oldText)) {
+			automaton.tokenize(in, tokens);
+			return tokens;
+		}
+
+		int restart = automaton.lookahead > offset ? -1 : lowerBound(offset - automaton.lookahead + 1) - 1;
+		while (restart >= 0 && !isTopLevel(restart)) restart--;
+		int from = 0;
+		if (restart > 0) {
+			tokens.addRange(this, 0, restart, 0);
+			from = starts[restart];
+		}
+
+		tokens.resync = this;
+		tokens.resyncFrom = offset + inserted;
+		tokens.resyncDelta = inserted - removed;
+		automaton.scan(in, tokens, from);
+		if (!tokens.stopped()) automaton.appendEOF(in, tokens);
+		tokens.resync = null;
+		if (tokens.stopped()) {
+			tokens.size = tokens.resyncIndex;
+			tokens.extras.subList(tokens.resyncExtras, tokens.extras.size()).clear();
+			tokens.addRange(this, tokens.resyncOld, size, inserted - removed);
+			tokens.resyncIndex = -1;
+		}
+
+		int[] lines = lineStarts;
+		if (lines != null) tokens.lineStarts = editLines(lines, in, offset, removed, inserted);
+		return tokens;
+	}
+
+	/* Updates the line starts of the old source */
+	private static int[] editLines(int[] lines, ScanInput in, int offset, int removed, int inserted) {
+		int before = 0;
+		while (before < lines.length && lines[before] <= offset) before++;
+		int after = before;
+		while (after < lines.length && lines[after] <= offset + removed) after++;
+		int count = 0;
+		for (int i = offset; i < offset + inserted; i++)
+			if (in.charAt(i) == '\n') count++;
+
+		int[] newLines = new int[before + count + lines.length - after];
+		System.arraycopy(lines, 0, newLines, 0, before);
+		int j = before;
+		for (int i = offset; i < offset + inserted; i++)
+			if (in.charAt(i) == '\n') newLines[j++] = i+1;
+		for (int i = after; i < lines.length; i++)
+			newLines[j++] = lines[i] + inserted - removed;
+		return newLines;
+	}
+
+	@Override
+	Token newToken(ScanInput in, int pos, String text, int kind) {
+		return new Token(text, file, line(pos), column(pos), kind);
+	}
+
+	private int[] lineStarts() {
+		int[] lines = lineStarts;
+		if (lines == null) {
+			int count = 0;
+			lines = new int[16];
+			for (int i = source.indexOf('\n', 0); i >= 0; i = source.indexOf('\n', i+1)) {
+				if (count == lines.length) lines = Arrays.copyOf(lines, count * 2);
+				lines[count++] = i+1;
+			}
+			lineStarts = lines = Arrays.copyOf(lines, count);
+		}
+		return lines;
+	}
+
+	/* The number of lines starting at or before pos */
+	private int linesBefore(int pos) {
+		int index = Arrays.binarySearch(lineStarts(), pos);
+		return index >= 0 ? index + 1 : -index - 1;
+	}
+
+	private int line(int pos) {
+		return firstLine + linesBefore(pos);
+	}
+
+	private int column(int pos) {
+		int lines = linesBefore(pos);
+		return pos - (lines == 0 ? 0 : lineStarts()[lines - 1]) + 1;
+	}
+
+	/**
+	 * The contents of a string literal whose escape codes have not been decoded yet
+	 */
+	private static final class Escaped {
+
+		final ScannerAutomaton automaton;
+		final int rule;
+		final int length;
+
+		Escaped(ScannerAutomaton automaton, int rule, int length) {
+			this.automaton = automaton;
+			this.rule = rule;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A token whose text and location are read from the storage when requested
+	 */
+	private final class CompactToken extends Token {
+
+		private final int index;
+		private String text;
+
+		CompactToken(int index) {
+			super(null, file, 0);
+			this.index = index;
+		}
+
+		@Override
+		public String getToken() {
+			if (text == null) text = getString(index);
+			return text;
+		}
+
+		@Override
+		public int getLine() {
+			return line(starts[index]);
+		}
+
+		@Override
+		public int getColumn() {
+			return column(starts[index]);
+		}
+
+		@Override
+		public int getKind() {
+			return kinds[index];
+		}
+	}
+}
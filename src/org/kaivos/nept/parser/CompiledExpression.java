@@ -0,0 +1,30 @@
+package org.kaivos.nept.parser;
+
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * An expression evaluated with generated code. Subclasses are generated at run time by
+ * {@link ExpressionGenerator}.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+abstract class CompiledExpression extends Expression {
+
+	/* The tree the code was generated from */
+	Expression source;
+	/* The nodes the generated code evaluates by calling evaluate() */
+	Expression[] fallbacks;
+	/* The handlers of the operators created by Expression.operator(DoubleBinaryOperator) */
+	DoubleBinaryOperator[] handlers;
+
+	@Override
+	public Expression compile() {
+		return this;
+	}
+
+	@Override
+	public boolean isCompiled() {
+		return true;
+	}
+}
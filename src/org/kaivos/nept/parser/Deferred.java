@@ -0,0 +1,48 @@
+package org.kaivos.nept.parser;
+
+import java.util.function.Supplier;
+
+/**
+ * A part of the source that is parsed only when its value is requested for the first time
+ *
+ * @author Iikka Hauhio
+ *
+ * @param <E> The type of the value
+ * @see TokenList#deferBalanced(Parser)
+ */
+public final class Deferred<E> implements Supplier<E> {
+
+	private Parser<E> parser;
+	private TokenList tokens;
+	private E value;
+
+	Deferred(Parser<E> parser, TokenList tokens) {
+		this.parser = parser;
+		this.tokens = tokens;
+	}
+
+	/**
+	 * Parses the tokens if they have not been parsed yet, and returns the result
+	 *
+	 * @return The value
+	 * @throws ParsingException on syntax error
+	 */
+	@Override
+	public synchronized E get() throws ParsingException {
+		if (parser != null) {
+			value = TokenList.parseAll(parser, tokens.fork());
+			parser = null;
+			tokens = null;
+		}
+		return value;
+	}
+
+	/**
+	 * Tests if the tokens have been parsed
+	 *
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public synchronized boolean isParsed() {
+		return parser == null;
+	}
+}
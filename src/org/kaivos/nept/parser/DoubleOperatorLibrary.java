@@ -0,0 +1,117 @@
+package org.kaivos.nept.parser;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A database for operators whose operands and values are <code>double</code>s, like {@link OperatorLibrary}
+ * without boxing. The operators are parsed by the table created with {@link #freeze()}.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+public class DoubleOperatorLibrary {
+
+	private final OperatorDefinitions<DoubleBinaryOperator, ToDoubleFunction<TokenList>> operators;
+
+	/**
+	 * The constructor
+	 *
+	 * @param defaultRhsParser The default RHS parser
+	 */
+	public DoubleOperatorLibrary(DoubleSupplier defaultRhsParser) {
+		this(tl -> defaultRhsParser.getAsDouble());
+	}
+
+	/**
+	 * The constructor
+	 *
+	 * @param defaultRhsParser The default RHS parser
+	 */
+	public DoubleOperatorLibrary(ToDoubleFunction<TokenList> defaultRhsParser) {
+		operators = new OperatorDefinitions<>(defaultRhsParser);
+	}
+
+	/**
+	 * Adds a new operator to the current precedence level
+	 *
+	 * @param op The operator
+	 * @param handler The constructor function
+	 */
+	public void add(String op, DoubleBinaryOperator handler) {
+		operators.add(op, handler);
+	}
+
+	/**
+	 * Adds a new operator to the current precedence level
+	 *
+	 * @param op The operator
+	 * @param rhsParser The right-side parser function
+	 * @param handler The constructor function
+	 */
+	public void add(String op, ToDoubleFunction<TokenList> rhsParser, DoubleBinaryOperator handler) {
+		operators.add(op, rhsParser, handler);
+	}
+
+	/**
+	 * Adds a new operator
+	 *
+	 * @param op The operator
+	 * @param precedenceLevel The precedence level
+	 * @param handler The constructor function
+	 */
+	public void add(String op, int precedenceLevel, DoubleBinaryOperator handler) {
+		operators.add(op, precedenceLevel, handler);
+	}
+
+	/**
+	 * Adds a new operator
+	 *
+	 * @param op The operator
+	 * @param precedenceLevel The precedence level
+	 * @param rhsParser The right-side parser function
+	 * @param handler The constructor function
+	 */
+	public void add(String op, int precedenceLevel, ToDoubleFunction<TokenList> rhsParser, DoubleBinaryOperator handler) {
+		operators.add(op, precedenceLevel, rhsParser, handler);
+	}
+
+	/**
+	 * Increases the current precedence level
+	 */
+	public void increaseLevel() {
+		operators.increaseLevel();
+	}
+
+	/**
+	 * Searches the precedence of the operator
+	 *
+	 * @param op The operator
+	 * @return The precedence if operator exists, otherwise -1
+	 */
+	public int getPrecedence(String op) {
+		return operators.getPrecedence(op);
+	}
+
+	/**
+	 * Creates an immutable table of the operators, see {@link OperatorLibrary#freeze()}
+	 *
+	 * @return The table
+	 */
+	public DoubleOperatorTable freeze() {
+		return freeze(null);
+	}
+
+	/**
+	 * Creates an immutable table of the operators that finds them by their kinds, see {@link OperatorLibrary#freeze(TokenScanner)}
+	 *
+	 * @param scanner The scanner, or null if the operators are found by their texts
+	 * @return The table
+	 */
+	public DoubleOperatorTable freeze(TokenScanner scanner) {
+		@SuppressWarnings("unchecked")
+		ToDoubleFunction<TokenList>[] parserType = (ToDoubleFunction<TokenList>[]) new ToDoubleFunction<?>[0];
+		return operators.freeze(scanner, new DoubleBinaryOperator[0], parserType, DoubleOperatorTable::new);
+	}
+}
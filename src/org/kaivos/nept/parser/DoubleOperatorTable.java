@@ -0,0 +1,73 @@
+package org.kaivos.nept.parser;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * An immutable operator table created by {@link DoubleOperatorLibrary#freeze()}, which parses and
+ * evaluates operators like {@link OperatorTable} without boxing the values
+ *
+ * @author Iikka Hauhio
+ *
+ */
+public final class DoubleOperatorTable implements ToDoubleFunction<TokenList> {
+
+	private final OperatorIndex index;
+	private final int[] levels;
+	private final DoubleBinaryOperator[] constructors;
+	private final ToDoubleFunction<TokenList>[] rhsParsers;
+	private final ToDoubleFunction<TokenList> defaultRhsParser;
+
+	DoubleOperatorTable(OperatorIndex index, DoubleBinaryOperator[] constructors,
+			ToDoubleFunction<TokenList>[] rhsParsers, ToDoubleFunction<TokenList> defaultRhsParser) {
+		this.index = index;
+		this.levels = index.levels;
+		this.constructors = constructors;
+		this.rhsParsers = rhsParsers;
+		this.defaultRhsParser = defaultRhsParser;
+	}
+
+	/**
+	 * Searches the precedence of the operator
+	 *
+	 * @param op The operator
+	 * @return The precedence if operator exists, otherwise -1
+	 */
+	public int getPrecedence(String op) {
+		return index.getPrecedence(op);
+	}
+
+	/**
+	 * Parses the operators, reading the first operand with the default RHS parser
+	 *
+	 * @param tl The token list
+	 * @return The value
+	 * @throws ParsingException on syntax error
+	 */
+	@Override
+	public double applyAsDouble(TokenList tl) throws ParsingException {
+		return parse(tl, defaultRhsParser.applyAsDouble(tl));
+	}
+
+	/**
+	 * Parses the operators
+	 *
+	 * @param tl The token list
+	 * @param lhs The first operand (not parsed by the table)
+	 * @return The value
+	 */
+	public double parse(TokenList tl, double lhs) {
+		return parse(tl, lhs, 0);
+	}
+
+	private double parse(TokenList tl, double lhs, int minLevel) {
+		while (true) {
+			int op = index.next(tl);
+			if (op < 0 || levels[op] < minLevel) return lhs;
+			tl.advance();
+			/* Operators of higher levels bind to the right operand, those of the same level are left associative */
+			double rhs = parse(tl, rhsParsers[op].applyAsDouble(tl), levels[op] + 1);
+			lhs = constructors[op].applyAsDouble(lhs, rhs);
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.kaivos.nept.parser;
+
+import java.util.function.BinaryOperator;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * A tree of an arithmetic expression whose values are <code>double</code>s and whose variables are
+ * stored in the slots of an array. The trees are usually built by an {@link OperatorLibrary} whose
+ * constructors are created by {@link #operator(String)} and {@link #operator(DoubleBinaryOperator)}.
+ *
+ * An expression that is evaluated many times can be compiled with {@link #compile()}. The compiled
+ * expression evaluates the tree with generated code, so that the JIT compiler sees straight-line code
+ * instead of a tree walk. Subclasses can define new kinds of nodes; they are evaluated by calling
+ * {@link #evaluate(double[])} from the generated code.
+ *
+ * <pre>
+ * OperatorLibrary&lt;Expression&gt; library = new OperatorLibrary&lt;&gt;(...);
+ * library.add("+", Expression.operator("+"));
+ * library.add("^", Expression.operator(Math::pow));
+ * Expression e = OperatorPrecedenceParser.fromLibrary(library).parse(tl).compile();
+ * double value = e.evaluate(new double[] { x, y });
+ * </pre>
+ *
+ * @author Iikka Hauhio
+ *
+ */
+public abstract class Expression {
+
+	/**
+	 * The constructor
+	 */
+	protected Expression() {}
+
+	/**
+	 * Evaluates the expression
+	 *
+	 * @param variables The values of the variables, indexed by their slots
+	 * @return The value
+	 */
+	public abstract double evaluate(double[] variables);
+
+	/**
+	 * Returns an expression that evaluates like this one with generated code. If the JVM cannot define
+	 * new classes in this package (Java 8) or the tree is too large for one method, the tree is returned
+	 * as is and evaluated by walking it.
+	 *
+	 * @return The compiled expression, or this expression
+	 */
+	public Expression compile() {
+		Expression compiled = ExpressionGenerator.generate(this);
+		return compiled == null ? this : compiled;
+	}
+
+	/**
+	 * Tests if the expression is evaluated with generated code
+	 *
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean isCompiled() {
+		return false;
+	}
+
+	/**
+	 * Creates a constant
+	 *
+	 * @param value The value
+	 * @return The expression
+	 */
+	public static Expression constant(double value) {
+		return new Constant(value);
+	}
+
+	/**
+	 * Creates a variable
+	 *
+	 * @param slot The index of the value of the variable in the array given to {@link #evaluate(double[])}
+	 * @return The expression
+	 */
+	public static Expression variable(int slot) {
+		if (slot < 0) throw new IllegalArgumentException("negative slot " + slot);
+		return new Variable(slot);
+	}
+
+	/**
+	 * Returns a constructor of an arithmetic operator that is compiled to one instruction
+	 *
+	 * @param op One of <code>+</code>, <code>-</code>, <code>*</code>, <code>/</code> and <code>%</code>
+	 * @return The constructor
+	 */
+	public static BinaryOperator<Expression> operator(String op) {
+		int instruction = "+-*/%".indexOf(op);
+		if (op.length() != 1 || instruction < 0) throw new IllegalArgumentException("not an arithmetic operator: " + op);
+		return (a, b) -> new Arithmetic(instruction, a, b);
+	}
+
+	/**
+	 * Returns a constructor of an operator whose value is calculated by a handler. The compiled code
+	 * calls the handler directly.
+	 *
+	 * @param handler The handler
+	 * @return The constructor
+	 */
+	public static BinaryOperator<Expression> operator(DoubleBinaryOperator handler) {
+		return (a, b) -> new Call(handler, a, b);
+	}
+
+	static final class Constant extends Expression {
+
+		final double value;
+
+		Constant(double value) {
+			this.value = value;
+		}
+
+		@Override
+		public double evaluate(double[] variables) {
+			return value;
+		}
+	}
+
+	static final class Variable extends Expression {
+
+		final int slot;
+
+		Variable(int slot) {
+			this.slot = slot;
+		}
+
+		@Override
+		public double evaluate(double[] variables) {
+			return variables[slot];
+		}
+	}
+
+	static final class Arithmetic extends Expression {
+
+		/* 0 to 4 for +, -, *, / and % */
+		final int instruction;
+		final Expression lhs, rhs;
+
+		Arithmetic(int instruction, Expression lhs, Expression rhs) {
+			this.instruction = instruction;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public double evaluate(double[] variables) {
+			double a = lhs.evaluate(variables), b = rhs.evaluate(variables);
+			switch (instruction) {
+			case 0: return a + b;
+			case 1: return a - b;
+			case 2: return a * b;
+			case 3: return a / b;
+			default: return a % b;
+			}
+		}
+	}
+
+	static final class Call extends Expression {
+
+		final DoubleBinaryOperator handler;
+		final Expression lhs, rhs;
+
+		Call(DoubleBinaryOperator handler, Expression lhs, Expression rhs) {
+			this.handler = handler;
+			this.lhs = lhs;
+			this.rhs = rhs;
+		}
+
+		@Override
+		public double evaluate(double[] variables) {
+			return handler.applyAsDouble(lhs.evaluate(variables), rhs.evaluate(variables));
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package org.kaivos.nept.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleBinaryOperator;
+
+/**
+ * Generates a {@link CompiledExpression} class from an expression tree.
+ *
+ * The tree becomes the body of <code>evaluate()</code>: constants are pushed, variables are
+ * loaded from the array, arithmetic operators become <code>dadd</code>, <code>dsub</code>,
+ * <code>dmul</code>, <code>ddiv</code> and <code>drem</code> instructions, and the handlers of
+ * other operators are called directly. Nodes of other classes are evaluated by calling their
+ * <code>evaluate()</code> method, which walks the subtree.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+final class ExpressionGenerator {
+
+	private static final String CLASS_NAME = "org/kaivos/nept/parser/GeneratedExpression";
+	private static final String SUPER_NAME = "org/kaivos/nept/parser/CompiledExpression";
+	private static final String EXPRESSION_NAME = "org/kaivos/nept/parser/Expression";
+	private static final String HANDLER_NAME = "java/util/function/DoubleBinaryOperator";
+
+	/* Deeper trees are not compiled, since the generator is recursive */
+	private static final int MAX_DEPTH = 1000;
+
+	/* Classes defined without the hidden class API need unique names */
+	private static final AtomicInteger counter = new AtomicInteger();
+
+	private static final int
+		ICONST_0 = 0x03, DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10, SIPUSH = 0x11,
+		LDC_W = 0x13, LDC2_W = 0x14, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, DALOAD = 0x31, AALOAD = 0x32,
+		DADD = 0x63, DRETURN = 0xaf, GETFIELD = 0xb4, INVOKEVIRTUAL = 0xb6, INVOKEINTERFACE = 0xb9;
+
+	private final ClassFileWriter writer = new ClassFileWriter();
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+	private final List<Expression> fallbacks = new ArrayList<>();
+	private final List<DoubleBinaryOperator> handlers = new ArrayList<>();
+
+	private ExpressionGenerator() {}
+
+	/**
+	 * Generates a compiled expression
+	 *
+	 * @param tree The expression
+	 * @return The compiled expression, or null if the class could not be generated or defined
+	 */
+	static CompiledExpression generate(Expression tree) {
+		if (!(tree instanceof Expression.Arithmetic || tree instanceof Expression.Call)) return null;
+		try {
+			ExpressionGenerator generator = new ExpressionGenerator();
+			byte[] bytes = generator.generateClass(tree);
+			if (bytes == null) return null;
+			Class<?> c = ClassFileWriter.define(bytes);
+			if (c == null) return null;
+			CompiledExpression compiled = (CompiledExpression) c.getDeclaredConstructor().newInstance();
+			compiled.source = tree;
+			compiled.fallbacks = generator.fallbacks.toArray(new Expression[0]);
+			compiled.handlers = generator.handlers.toArray(new DoubleBinaryOperator[0]);
+			return compiled;
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private byte[] generateClass(Expression tree) {
+		int maxStack = generate(tree, 0);
+		op(DRETURN);
+		if (maxStack < 0 || code.size() > ClassFileWriter.MAX_CODE_LENGTH) return null;
+		writer.defaultConstructor(SUPER_NAME);
+		writer.method(0x0001, "evaluate", "([D)D", maxStack, 2, code.toByteArray());
+		return writer.toByteArray(CLASS_NAME + counter.incrementAndGet(), SUPER_NAME);
+	}
+
+	/* Code of evaluate() */
+
+	/**
+	 * Generates the code that pushes the value of a node
+	 *
+	 * @param e The node
+	 * @param depth The depth of the node in the tree
+	 * @return The maximum size of the operand stack used by the code, or -1 if the tree is too large
+	 */
+	private int generate(Expression e, int depth) {
+		if (depth > MAX_DEPTH || code.size() > ClassFileWriter.MAX_CODE_LENGTH) return -1;
+		if (e instanceof Expression.Constant) {
+			double value = ((Expression.Constant) e).value;
+			if (Double.doubleToRawLongBits(value) == 0) {
+				op(DCONST_0);
+			} else if (value == 1.0) {
+				op(DCONST_1);
+			} else {
+				op(LDC2_W);
+				u2(writer.doubleConstant(value));
+			}
+			return 2;
+		}
+		if (e instanceof Expression.Variable) {
+			op(ALOAD_1);
+			pushInt(((Expression.Variable) e).slot);
+			op(DALOAD);
+			return 2;
+		}
+		if (e instanceof Expression.Arithmetic) {
+			Expression.Arithmetic node = (Expression.Arithmetic) e;
+			int lhs = generate(node.lhs, depth + 1);
+			int rhs = generate(node.rhs, depth + 1);
+			if (lhs < 0 || rhs < 0) return -1;
+			/* dadd, dsub, dmul, ddiv and drem are four opcodes apart */
+			op(DADD + 4 * node.instruction);
+			return Math.max(lhs, 2 + rhs);
+		}
+		if (e instanceof Expression.Call) {
+			Expression.Call node = (Expression.Call) e;
+			/* handlers[i].applyAsDouble(lhs, rhs) */
+			element("handlers", "[L" + HANDLER_NAME + ";", handlers.size());
+			handlers.add(node.handler);
+			int lhs = generate(node.lhs, depth + 1);
+			int rhs = generate(node.rhs, depth + 1);
+			if (lhs < 0 || rhs < 0) return -1;
+			op(INVOKEINTERFACE);
+			u2(writer.interfaceMethodConstant(HANDLER_NAME, "applyAsDouble", "(DD)D"));
+			op(5);
+			op(0);
+			return Math.max(2, Math.max(1 + lhs, 3 + rhs));
+		}
+		/* fallbacks[i].evaluate(variables) */
+		element("fallbacks", "[L" + EXPRESSION_NAME + ";", fallbacks.size());
+		fallbacks.add(e);
+		op(ALOAD_1);
+		op(INVOKEVIRTUAL);
+		u2(writer.methodConstant(EXPRESSION_NAME, "evaluate", "([D)D"));
+		return 2;
+	}
+
+	/* Pushes this.field[index] */
+	private void element(String field, String type, int index) {
+		op(ALOAD_0);
+		op(GETFIELD);
+		u2(writer.fieldConstant(SUPER_NAME, field, type));
+		pushInt(index);
+		op(AALOAD);
+	}
+
+	private void op(int opcode) {
+		code.write(opcode);
+	}
+
+	private void u2(int value) {
+		ClassFileWriter.u2(code, value);
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			op(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op(BIPUSH);
+			op(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(SIPUSH);
+			u2(value);
+		} else {
+			op(LDC_W);
+			u2(writer.intConstant(value));
+		}
+	}
+}
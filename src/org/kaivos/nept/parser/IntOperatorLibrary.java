@@ -0,0 +1,117 @@
+package org.kaivos.nept.parser;
+
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntSupplier;
+import java.util.function.ToIntFunction;
+
+/**
+ * A database for operators whose operands and values are <code>int</code>s, like {@link OperatorLibrary}
+ * without boxing. The operators are parsed by the table created with {@link #freeze()}.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+public class IntOperatorLibrary {
+
+	private final OperatorDefinitions<IntBinaryOperator, ToIntFunction<TokenList>> operators;
+
+	/**
+	 * The constructor
+	 *
+	 * @param defaultRhsParser The default RHS parser
+	 */
+	public IntOperatorLibrary(IntSupplier defaultRhsParser) {
+		this(tl -> defaultRhsParser.getAsInt());
+	}
+
+	/**
+	 * The constructor
+	 *
+	 * @param defaultRhsParser The default RHS parser
+	 */
+	public IntOperatorLibrary(ToIntFunction<TokenList> defaultRhsParser) {
+		operators = new OperatorDefinitions<>(defaultRhsParser);
+	}
+
+	/**
+	 * Adds a new operator to the current precedence level
+	 *
+	 * @param op The operator
+	 * @param handler The constructor function
+	 */
+	public void add(String op, IntBinaryOperator handler) {
+		operators.add(op, handler);
+	}
+
+	/**
+	 * Adds a new operator to the current precedence level
+	 *
+	 * @param op The operator
+	 * @param rhsParser The right-side parser function
+	 * @param handler The constructor function
+	 */
+	public void add(String op, ToIntFunction<TokenList> rhsParser, IntBinaryOperator handler) {
+		operators.add(op, rhsParser, handler);
+	}
+
+	/**
+	 * Adds a new operator
+	 *
+	 * @param op The operator
+	 * @param precedenceLevel The precedence level
+	 * @param handler The constructor function
+	 */
+	public void add(String op, int precedenceLevel, IntBinaryOperator handler) {
+		operators.add(op, precedenceLevel, handler);
+	}
+
+	/**
+	 * Adds a new operator
+	 *
+	 * @param op The operator
+	 * @param precedenceLevel The precedence level
+	 * @param rhsParser The right-side parser function
+	 * @param handler The constructor function
+	 */
+	public void add(String op, int precedenceLevel, ToIntFunction<TokenList> rhsParser, IntBinaryOperator handler) {
+		operators.add(op, precedenceLevel, rhsParser, handler);
+	}
+
+	/**
+	 * Increases the current precedence level
+	 */
+	public void increaseLevel() {
+		operators.increaseLevel();
+	}
+
+	/**
+	 * Searches the precedence of the operator
+	 *
+	 * @param op The operator
+	 * @return The precedence if operator exists, otherwise -1
+	 */
+	public int getPrecedence(String op) {
+		return operators.getPrecedence(op);
+	}
+
+	/**
+	 * Creates an immutable table of the operators, see {@link OperatorLibrary#freeze()}
+	 *
+	 * @return The table
+	 */
+	public IntOperatorTable freeze() {
+		return freeze(null);
+	}
+
+	/**
+	 * Creates an immutable table of the operators that finds them by their kinds, see {@link OperatorLibrary#freeze(TokenScanner)}
+	 *
+	 * @param scanner The scanner, or null if the operators are found by their texts
+	 * @return The table
+	 */
+	public IntOperatorTable freeze(TokenScanner scanner) {
+		@SuppressWarnings("unchecked")
+		ToIntFunction<TokenList>[] parserType = (ToIntFunction<TokenList>[]) new ToIntFunction<?>[0];
+		return operators.freeze(scanner, new IntBinaryOperator[0], parserType, IntOperatorTable::new);
+	}
+}
@@ -0,0 +1,21 @@
+package org.kaivos.nept.parser;
+
+/**
+ * Finds the literal rules (ignored sequences, comment and string delimiters and operators)
+ * starting at a position. Subclasses are generated at run time by {@link MatcherGenerator}.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+abstract class LiteralMatcher {
+
+	/**
+	 * Finds the longest match of each category starting from position i and stores them to the
+	 * match array as (rule, length) pairs, or -1 if the category did not match
+	 *
+	 * @param in The input
+	 * @param i The position
+	 * @param match The array of matches, indexed by 2*category
+	 */
+	abstract void walk(ScanInput in, int i, int[] match);
+}
@@ -0,0 +1,73 @@
+package org.kaivos.nept.parser;
+
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
+
+/**
+ * An immutable operator table created by {@link LongOperatorLibrary#freeze()}, which parses and
+ * evaluates operators like {@link OperatorTable} without boxing the values
+ *
+ * @author Iikka Hauhio
+ *
+ */
+public final class LongOperatorTable implements ToLongFunction<TokenList> {
+
+	private final OperatorIndex index;
+	private final int[] levels;
+	private final LongBinaryOperator[] constructors;
+	private final ToLongFunction<TokenList>[] rhsParsers;
+	private final ToLongFunction<TokenList> defaultRhsParser;
+
+	LongOperatorTable(OperatorIndex index, LongBinaryOperator[] constructors,
+			ToLongFunction<TokenList>[] rhsParsers, ToLongFunction<TokenList> defaultRhsParser) {
+		this.index = index;
+		this.levels = index.levels;
+		this.constructors = constructors;
+		this.rhsParsers = rhsParsers;
+		this.defaultRhsParser = defaultRhsParser;
+	}
+
+	/**
+	 * Searches the precedence of the operator
+	 *
+	 * @param op The operator
+	 * @return The precedence if operator exists, otherwise -1
+	 */
+	public int getPrecedence(String op) {
+		return index.getPrecedence(op);
+	}
+
+	/**
+	 * Parses the operators, reading the first operand with the default RHS parser
+	 *
+	 * @param tl The token list
+	 * @return The value
+	 * @throws ParsingException on syntax error
+	 */
+	@Override
+	public long applyAsLong(TokenList tl) throws ParsingException {
+		return parse(tl, defaultRhsParser.applyAsLong(tl));
+	}
+
+	/**
+	 * Parses the operators
+	 *
+	 * @param tl The token list
+	 * @param lhs The first operand (not parsed by the table)
+	 * @return The value
+	 */
+	public long parse(TokenList tl, long lhs) {
+		return parse(tl, lhs, 0);
+	}
+
+	private long parse(TokenList tl, long lhs, int minLevel) {
+		while (true) {
+			int op = index.next(tl);
+			if (op < 0 || levels[op] < minLevel) return lhs;
+			tl.advance();
+			/* Operators of higher levels bind to the right operand, those of the same level are left associative */
+			long rhs = parse(tl, rhsParsers[op].applyAsLong(tl), levels[op] + 1);
+			lhs = constructors[op].applyAsLong(lhs, rhs);
+		}
+	}
+}
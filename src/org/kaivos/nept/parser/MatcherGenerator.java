@@ -0,0 +1,201 @@
+package org.kaivos.nept.parser;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Generates a {@link LiteralMatcher} class from the trie of the literal rules of a scanner.
+ *
+ * Each state of the trie becomes a block of code that stores the accepted rules and
+ * dispatches on the next character with a <code>lookupswitch</code>, so the trie is walked
+ * without reading any tables. The class is defined as a hidden class if the running JVM
+ * supports them, and otherwise as a normal class in this package.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+final class MatcherGenerator {
+
+	private static final String CLASS_NAME = "org/kaivos/nept/parser/GeneratedLiteralMatcher";
+	private static final String SUPER_NAME = "org/kaivos/nept/parser/LiteralMatcher";
+	private static final String INPUT_NAME = "org/kaivos/nept/parser/ScanInput";
+
+	private static final int
+		ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13,
+		ILOAD = 0x15, ILOAD_2 = 0x1c, ALOAD_1 = 0x2b, ALOAD_3 = 0x2d,
+		ISTORE = 0x36, IASTORE = 0x4f, ISUB = 0x64, IINC = 0x84, IFNE = 0x9a,
+		LOOKUPSWITCH = 0xab, RETURN = 0xb1,
+		INVOKEVIRTUAL = 0xb6, INVOKESTATIC = 0xb8;
+
+	/* The local variable of walk() holding the current position */
+	private static final int J = 4;
+
+	private final List<HashMap<Character, Integer>> trie;
+	private final List<int[]> accepts;
+
+	private final ClassFileWriter writer = new ClassFileWriter();
+
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+	/* The positions of the switch offsets in the code and their values */
+	private final List<int[]> offsets = new ArrayList<>();
+	private byte[] codeBytes;
+
+	private MatcherGenerator(List<HashMap<Character, Integer>> trie, List<int[]> accepts) {
+		this.trie = trie;
+		this.accepts = accepts;
+	}
+
+	/**
+	 * Generates a matcher
+	 *
+	 * @param trie The transitions of each state of the trie, state 0 being the root
+	 * @param accepts The rule accepted in each category in each state, or -1
+	 * @return The matcher, or null if the class could not be generated or defined
+	 */
+	static LiteralMatcher generate(List<HashMap<Character, Integer>> trie, List<int[]> accepts) {
+		try {
+			byte[] bytes = new MatcherGenerator(trie, accepts).generateClass();
+			if (bytes == null) return null;
+			Class<?> c = ClassFileWriter.define(bytes);
+			return c == null ? null : (LiteralMatcher) c.getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+			return null;
+		}
+	}
+
+	private byte[] generateClass() {
+		if (!generateWalk()) return null;
+		writer.defaultConstructor(SUPER_NAME);
+		writer.method(0x0001, "walk", "(L" + INPUT_NAME + ";I[I)V", 4, 5, codeBytes);
+		return writer.toByteArray(CLASS_NAME, SUPER_NAME);
+	}
+
+	/* Code of walk() */
+
+	private boolean generateWalk() {
+		int fill = writer.methodConstant("java/util/Arrays", "fill", "([II)V");
+		int has = writer.methodConstant(INPUT_NAME, "has", "(I)Z");
+		int charAt = writer.methodConstant(INPUT_NAME, "charAt", "(I)C");
+
+		/* Arrays.fill(match, -1); j = i; */
+		op(ALOAD_3);
+		pushInt(-1);
+		op(INVOKESTATIC);
+		u2(code, fill);
+		op(ILOAD_2);
+		op(ISTORE);
+		op(J);
+
+		/* The position of the switch offset pointing to each state and the position of the switch */
+		Map<Integer, int[]> patches = new HashMap<>();
+		List<Integer> stack = new ArrayList<>();
+		stack.add(0);
+		while (!stack.isEmpty()) {
+			int state = stack.remove(stack.size() - 1);
+			int[] patch = patches.remove(state);
+			if (patch != null) offsets.add(new int[] { patch[0], code.size() - patch[1] });
+
+			int[] accepted = accepts.get(state);
+			for (int category = 0; category < accepted.length; category++) {
+				if (accepted[category] < 0) continue;
+				/* match[2*category] = rule; match[2*category+1] = j - i; */
+				op(ALOAD_3);
+				pushInt(2 * category);
+				pushInt(accepted[category]);
+				op(IASTORE);
+				op(ALOAD_3);
+				pushInt(2 * category + 1);
+				op(ILOAD);
+				op(J);
+				op(ILOAD_2);
+				op(ISUB);
+				op(IASTORE);
+			}
+
+			TreeMap<Character, Integer> next = new TreeMap<>(trie.get(state));
+			if (next.isEmpty()) {
+				op(RETURN);
+				continue;
+			}
+
+			/* if (!in.has(j)) return; */
+			op(ALOAD_1);
+			op(ILOAD);
+			op(J);
+			op(INVOKEVIRTUAL);
+			u2(code, has);
+			op(IFNE);
+			u2(code, 4);
+			op(RETURN);
+
+			/* switch (in.charAt(j++)) */
+			op(ALOAD_1);
+			op(ILOAD);
+			op(J);
+			op(INVOKEVIRTUAL);
+			u2(code, charAt);
+			op(IINC);
+			op(J);
+			op(1);
+
+			int switchPos = code.size();
+			op(LOOKUPSWITCH);
+			while (code.size() % 4 != 0) op(0);
+			int length = code.size() - switchPos + 8 + 8 * next.size();
+			u4(code, length); // the default case returns
+			u4(code, next.size());
+			for (Map.Entry<Character, Integer> e : next.entrySet()) {
+				u4(code, e.getKey());
+				patches.put(e.getValue(), new int[] { code.size(), switchPos });
+				u4(code, 0);
+			}
+			op(RETURN);
+
+			/* Children are generated in order */
+			List<Integer> children = new ArrayList<>(next.values());
+			for (int k = children.size() - 1; k >= 0; k--) stack.add(children.get(k));
+
+			if (code.size() > ClassFileWriter.MAX_CODE_LENGTH) return false;
+		}
+		codeBytes = code.toByteArray();
+		for (int[] offset : offsets) {
+			int pos = offset[0], value = offset[1];
+			codeBytes[pos] = (byte) (value >> 24);
+			codeBytes[pos+1] = (byte) (value >> 16);
+			codeBytes[pos+2] = (byte) (value >> 8);
+			codeBytes[pos+3] = (byte) value;
+		}
+		return codeBytes.length <= ClassFileWriter.MAX_CODE_LENGTH;
+	}
+
+	private void op(int opcode) {
+		code.write(opcode);
+	}
+
+	private void pushInt(int value) {
+		if (value >= -1 && value <= 5) {
+			op(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			op(BIPUSH);
+			op(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			op(SIPUSH);
+			u2(code, value);
+		} else {
+			op(LDC_W);
+			u2(code, writer.intConstant(value));
+		}
+	}
+
+	private static void u2(ByteArrayOutputStream out, int value) {
+		ClassFileWriter.u2(out, value);
+	}
+
+	private static void u4(ByteArrayOutputStream out, int value) {
+		ClassFileWriter.u4(out, value);
+	}
+}
@@ -0,0 +1,127 @@
+package org.kaivos.nept.parser;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The operators of {@link IntOperatorLibrary}, {@link LongOperatorLibrary} and {@link DoubleOperatorLibrary},
+ * whose handlers and right-side parsers are of different functional interfaces
+ *
+ * @author Iikka Hauhio
+ *
+ * @param <C> The type of the constructor functions
+ * @param <P> The type of the right-side parser functions
+ */
+final class OperatorDefinitions<C, P> {
+
+	/**
+	 * Creates a table from the operators numbered by an index
+	 *
+	 * @param <C> The type of the constructor functions
+	 * @param <P> The type of the right-side parser functions
+	 * @param <T> The type of the table
+	 */
+	@FunctionalInterface
+	interface TableFactory<C, P, T> {
+		T create(OperatorIndex index, C[] constructors, P[] rhsParsers, P defaultRhsParser);
+	}
+
+	private final HashMap<String, C> constructors = new HashMap<>();
+	private final HashMap<String, Integer> precedence = new HashMap<>();
+	private final HashMap<String, P> rhsParsers = new HashMap<>();
+	private final P defaultRhsParser;
+	private int level = 0;
+
+	/**
+	 * The constructor
+	 *
+	 * @param defaultRhsParser The default RHS parser
+	 */
+	OperatorDefinitions(P defaultRhsParser) {
+		this.defaultRhsParser = defaultRhsParser;
+	}
+
+	/**
+	 * Adds a new operator to the current precedence level with the default RHS parser
+	 *
+	 * @param op The operator
+	 * @param handler The constructor function
+	 */
+	void add(String op, C handler) {
+		add(op, level, defaultRhsParser, handler);
+	}
+
+	/**
+	 * Adds a new operator to the current precedence level
+	 *
+	 * @param op The operator
+	 * @param rhsParser The right-side parser function
+	 * @param handler The constructor function
+	 */
+	void add(String op, P rhsParser, C handler) {
+		add(op, level, rhsParser, handler);
+	}
+
+	/**
+	 * Adds a new operator with the default RHS parser
+	 *
+	 * @param op The operator
+	 * @param precedenceLevel The precedence level
+	 * @param handler The constructor function
+	 */
+	void add(String op, int precedenceLevel, C handler) {
+		add(op, precedenceLevel, defaultRhsParser, handler);
+	}
+
+	/**
+	 * Adds a new operator
+	 *
+	 * @param op The operator
+	 * @param precedenceLevel The precedence level
+	 * @param rhsParser The right-side parser function
+	 * @param handler The constructor function
+	 */
+	void add(String op, int precedenceLevel, P rhsParser, C handler) {
+		constructors.put(op, handler);
+		precedence.put(op, precedenceLevel);
+		rhsParsers.put(op, rhsParser);
+	}
+
+	/**
+	 * Increases the current precedence level
+	 */
+	void increaseLevel() {
+		level++;
+	}
+
+	/**
+	 * Searches the precedence of the operator
+	 *
+	 * @param op The operator
+	 * @return The precedence if operator exists, otherwise -1
+	 */
+	int getPrecedence(String op) {
+		return precedence.containsKey(op) ? precedence.get(op) : -1;
+	}
+
+	/**
+	 * Creates a table of the operators
+	 *
+	 * @param scanner The scanner, or null if the operators are found by their texts
+	 * @param constructorType An empty array of the constructor type, copied to the array given to the table
+	 * @param rhsParserType An empty array of the right-side parser type, copied to the array given to the table
+	 * @param factory The constructor of the table
+	 * @param <T> The type of the table
+	 * @return The table
+	 */
+	<T> T freeze(TokenScanner scanner, C[] constructorType, P[] rhsParserType, TableFactory<C, P, T> factory) {
+		OperatorIndex index = OperatorIndex.of(precedence, scanner);
+		C[] handlers = Arrays.copyOf(constructorType, index.ops.length);
+		P[] parsers = Arrays.copyOf(rhsParserType, index.ops.length);
+		for (int i = 0; i < index.ops.length; i++) {
+			handlers[i] = constructors.get(index.ops[i]);
+			parsers[i] = rhsParsers.get(index.ops[i]);
+		}
+		return factory.create(index, handlers, parsers, defaultRhsParser);
+	}
+}
@@ -0,0 +1,136 @@
+package org.kaivos.nept.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Numbers the operators of a frozen operator table and finds them by their texts or kinds
+ *
+ * @author Iikka Hauhio
+ *
+ */
+final class OperatorIndex {
+
+	final String[] ops;
+	final int[] levels;
+
+	/* An open-addressing table from texts to operator numbers */
+	private final String[] textKeys;
+	private final int[] textOps;
+	private final int textMask;
+	/* The operator number + 1 of each kind, or 0 */
+	private final int[] kindOps;
+
+	/**
+	 * Creates an index
+	 *
+	 * @param ops The operators
+	 * @param levels The precedence levels of the operators
+	 * @param scanner The scanner whose kinds are used to find the operators, or null
+	 */
+	OperatorIndex(List<String> ops, List<Integer> levels, TokenScanner scanner) {
+		int n = ops.size();
+		this.ops = ops.toArray(new String[n]);
+		this.levels = new int[n];
+		for (int i = 0; i < n; i++) this.levels[i] = levels.get(i);
+
+		/* Grows the table until the texts do not collide, so that most lookups compare one string */
+		int size = Integer.highestOneBit(Math.max(n, 1) * 4 - 1);
+		while (size < 1 << 12 && collides(this.ops, size - 1)) size *= 2;
+		textKeys = new String[size];
+		textOps = new int[size];
+		textMask = size - 1;
+		for (int i = 0; i < n; i++) {
+			int slot = hash(this.ops[i]) & textMask;
+			while (textKeys[slot] != null) slot = (slot + 1) & textMask;
+			textKeys[slot] = this.ops[i];
+			textOps[slot] = i;
+		}
+
+		if (scanner == null) {
+			kindOps = null;
+		} else {
+			int[] kinds = new int[n];
+			int max = 0;
+			for (int i = 0; i < n; i++) max = Math.max(max, kinds[i] = scanner.kindOf(this.ops[i]));
+			kindOps = new int[max + 1];
+			for (int i = 0; i < n; i++)
+				if (kinds[i] > Token.STRING) kindOps[kinds[i]] = i + 1;
+		}
+	}
+
+	/**
+	 * Creates an index of the operators of a library. Operators with negative levels are left out.
+	 *
+	 * @param precedence The precedence levels of the operators
+	 * @param scanner The scanner whose kinds are used to find the operators, or null
+	 * @return The index
+	 */
+	static OperatorIndex of(Map<String, Integer> precedence, TokenScanner scanner) {
+		List<String> ops = new ArrayList<>();
+		List<Integer> levels = new ArrayList<>();
+		for (Map.Entry<String, Integer> e : precedence.entrySet()) {
+			if (e.getValue() < 0) continue;
+			ops.add(e.getKey());
+			levels.add(e.getValue());
+		}
+		return new OperatorIndex(ops, levels, scanner);
+	}
+
+	private static int hash(String text) {
+		int h = text.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean collides(String[] texts, int mask) {
+		boolean[] used = new boolean[mask + 1];
+		for (String text : texts) {
+			int slot = hash(text) & mask;
+			if (used[slot]) return true;
+			used[slot] = true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the number of an operator
+	 *
+	 * @param text The text
+	 * @return The number, or -1 if the text is not an operator
+	 */
+	int lookup(String text) {
+		for (int slot = hash(text) & textMask;; slot = (slot + 1) & textMask) {
+			String key = textKeys[slot];
+			if (key == null) return -1;
+			if (key.equals(text)) return textOps[slot];
+		}
+	}
+
+	/**
+	 * Returns the number of the operator at the cursor
+	 *
+	 * @param tl The token list
+	 * @return The number, or -1 if the next token is not an operator or there are no tokens left
+	 */
+	int next(TokenList tl) {
+		if (!tl.hasNext()) return -1;
+		if (kindOps != null) {
+			int kind = tl.seekKind();
+			if (kind > Token.STRING) return kind < kindOps.length ? kindOps[kind] - 1 : -1;
+			if (kind == Token.STRING) return -1;
+		}
+		return lookup(tl.seekString());
+	}
+
+	/**
+	 * Searches the precedence of the operator
+	 *
+	 * @param op The operator
+	 * @return The precedence if operator exists, otherwise -1
+	 */
+	int getPrecedence(String op) {
+		int i = lookup(op);
+		return i < 0 ? -1 : levels[i];
+	}
+}
@@ -1,6 +1,8 @@
 package org.kaivos.nept.parser;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.function.BinaryOperator;
 import java.util.function.Supplier;
 import java.util.function.Function;
@@ -170,4 +172,34 @@ public class OperatorLibrary<E> {
 			return defaultRhsParser;
 		return rhsParsers.get(op);
 	}
+
+	/**
+	 * Creates an immutable table of the operators, which parses them faster than a parser created with
+	 * {@link OperatorPrecedenceParser#fromLibrary(OperatorLibrary)}. Operators added to the library later
+	 * are not added to the table.
+	 * 
+	 * @return The table
+	 */
+	public OperatorTable<E> freeze() {
+		return freeze(null);
+	}
+
+	/**
+	 * Creates an immutable table of the operators, like {@link #freeze()}, that finds the operators by
+	 * the kinds the scanner gives to them. The operators are registered as kinds of the scanner
+	 * (see {@link TokenScanner#kindOf(String)}), so the tokens must be read after this call.
+	 * 
+	 * @param scanner The scanner, or null if the operators are found by their texts
+	 * @return The table
+	 */
+	public OperatorTable<E> freeze(TokenScanner scanner) {
+		OperatorIndex index = OperatorIndex.of(precedence, scanner);
+		List<BinaryOperator<E>> handlers = new ArrayList<>();
+		List<Function<TokenList, E>> parsers = new ArrayList<>();
+		for (String op : index.ops) {
+			handlers.add(constructors.get(op));
+			parsers.add(rhsParsers.get(op));
+		}
+		return new OperatorTable<>(index, handlers, parsers, defaultRhsParser);
+	}
 }
@@ -1,5 +1,6 @@
 package org.kaivos.nept.parser;
 
+import java.util.Arrays;
 import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -16,6 +17,7 @@ public class OperatorPrecedenceParser<E> implements Parser<E> {
 	Function<String, Integer> getPrecedenceLevel;
 	Function<String, Function<TokenList, E>> parsePrimary;
 	Function<String, BinaryOperator<E>> construct;
+	boolean explicitStack = false;
 
 	private OperatorPrecedenceParser() {}
 	
@@ -65,6 +67,21 @@ public class OperatorPrecedenceParser<E> implements Parser<E> {
 		);
 	}
 	
+	/**
+	 * Tells the parser to keep the pending operators in arrays instead of the call stack
+	 * (a shunting-yard parser), so that the depth of the Java stack does not depend on the
+	 * number of precedence levels in the expression. The trees and the order in which the
+	 * constructors and the RHS parsers are called are the same in both modes.
+	 * This is set to false by default.
+	 * 
+	 * @param value true or false
+	 * @return self
+	 */
+	public OperatorPrecedenceParser<E> useExplicitStack(boolean value) {
+		explicitStack = value;
+		return this;
+	}
+	
 	@Override
 	public E parse(TokenList tl) throws ParsingException {
 		return parse(tl, parsePrimary.apply(null).apply(tl));
@@ -78,7 +95,7 @@ public class OperatorPrecedenceParser<E> implements Parser<E> {
 	 * @return The parsed tree
 	 */
 	public E parse(TokenList tl, E lhs) {
-		return _parse(tl, lhs, 0);
+		return explicitStack ? parseWithStack(tl, lhs) : _parse(tl, lhs, 0);
 	}
 	
 	private E _parse(TokenList tl, E initialLhs, int level) {
@@ -96,4 +113,41 @@ public class OperatorPrecedenceParser<E> implements Parser<E> {
 		}
 		return lhs;
 	}
+	
+	@SuppressWarnings("unchecked")
+	private E parseWithStack(TokenList tl, E initialLhs) {
+		/* The pending operators and their left operands */
+		Object[] lhsStack = new Object[16];
+		String[] opStack = new String[16];
+		int[] levelStack = new int[16];
+		int depth = 0;
+		/* The rightmost operand */
+		E rhs = initialLhs;
+		
+		int oplevel;
+		while ((oplevel=getPrecedenceLevel.apply(tl.seekString())) >= 0) {
+			/* Operators of the same or a higher level are complete */
+			while (depth > 0 && levelStack[depth-1] >= oplevel) {
+				depth--;
+				rhs = construct.apply(opStack[depth]).apply((E) lhsStack[depth], rhs);
+				lhsStack[depth] = null;
+			}
+			if (depth == opStack.length) {
+				lhsStack = Arrays.copyOf(lhsStack, depth * 2);
+				opStack = Arrays.copyOf(opStack, depth * 2);
+				levelStack = Arrays.copyOf(levelStack, depth * 2);
+			}
+			String op = tl.nextString();
+			lhsStack[depth] = rhs;
+			opStack[depth] = op;
+			levelStack[depth] = oplevel;
+			depth++;
+			rhs = parsePrimary.apply(op).apply(tl);
+		}
+		while (depth > 0) {
+			depth--;
+			rhs = construct.apply(opStack[depth]).apply((E) lhsStack[depth], rhs);
+		}
+		return rhs;
+	}
 }
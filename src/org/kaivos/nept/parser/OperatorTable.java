@@ -0,0 +1,106 @@
+package org.kaivos.nept.parser;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * An immutable operator table created by {@link OperatorLibrary#freeze()}, which parses
+ * operators like {@link OperatorPrecedenceParser} with a Pratt parser.
+ *
+ * The operators are numbered, and their precedence levels, constructors and right-side parsers
+ * are stored in arrays. Each operator token is looked up once, by its kind if the table was
+ * created for a scanner and by a hash table of the texts otherwise. The table can be used
+ * from multiple threads.
+ *
+ * @author Iikka Hauhio
+ *
+ * @param <E> The type of the primary tree object
+ */
+public final class OperatorTable<E> implements Parser<E> {
+
+	private final OperatorIndex index;
+	private final int[] levels;
+	private final BinaryOperator<E>[] constructors;
+	private final Function<TokenList, E>[] rhsParsers;
+	private final Function<TokenList, E> defaultRhsParser;
+
+	OperatorTable(OperatorIndex index, List<BinaryOperator<E>> constructors,
+			List<Function<TokenList, E>> rhsParsers, Function<TokenList, E> defaultRhsParser) {
+		this.index = index;
+		this.levels = index.levels;
+		@SuppressWarnings("unchecked")
+		BinaryOperator<E>[] constructorArray = (BinaryOperator<E>[]) constructors.toArray(new BinaryOperator<?>[0]);
+		@SuppressWarnings("unchecked")
+		Function<TokenList, E>[] rhsParserArray = (Function<TokenList, E>[]) rhsParsers.toArray(new Function<?, ?>[0]);
+		this.constructors = constructorArray;
+		this.rhsParsers = rhsParserArray;
+		this.defaultRhsParser = defaultRhsParser;
+	}
+
+	/**
+	 * Searches the precedence of the operator
+	 *
+	 * @param op The operator
+	 * @return The precedence if operator exists, otherwise -1
+	 */
+	public int getPrecedence(String op) {
+		return index.getPrecedence(op);
+	}
+
+	/**
+	 * Returns the operators of the table
+	 *
+	 * @return The operators
+	 */
+	public List<String> getOperators() {
+		return Arrays.asList(index.ops.clone());
+	}
+
+	@Override
+	public E parse(TokenList tl) throws ParsingException {
+		return parse(tl, defaultRhsParser.apply(tl));
+	}
+
+	/**
+	 * Parses the operators
+	 *
+	 * @param tl The token list
+	 * @param lhs The first operand (not parsed by the table)
+	 * @return The parsed tree
+	 */
+	public E parse(TokenList tl, E lhs) {
+		return parse(tl, lhs, 0, new Lookahead());
+	}
+
+	private E parse(TokenList tl, E lhs, int minLevel, Lookahead next) {
+		while (true) {
+			int op = next.op(tl);
+			if (op < 0 || levels[op] < minLevel) return lhs;
+			tl.advance();
+			E rhs = rhsParsers[op].apply(tl);
+			/* Operators of higher levels bind to the right operand, those of the same level are left associative */
+			rhs = parse(tl, rhs, levels[op] + 1, next);
+			lhs = constructors[op].apply(lhs, rhs);
+		}
+	}
+
+	/**
+	 * The operator at the cursor, remembered so that each token is looked up once
+	 */
+	private final class Lookahead {
+
+		private int mark = -1;
+		private int op;
+
+		int op(TokenList tl) {
+			int pos = tl.mark();
+			if (pos != mark) {
+				op = index.next(tl);
+				mark = pos;
+			}
+			return op;
+		}
+	}
+}
@@ -0,0 +1,176 @@
+package org.kaivos.nept.parser;
+
+/**
+ * A parser that remembers the results of another parser at each position of a token list.
+ * When the rule is tried again at the same position, for example after backtracking, the
+ * remembered result (or error) is returned and the cursor is moved to where the rule ended,
+ * so PEG-style grammars whose rules are all memoized parse in linear time.
+ *
+ * The results are stored in an open-addressing table keyed by the token index. The table grows
+ * until it holds the maximum number of entries, after which new results replace old ones.
+ * The table is cleared when the parser is used on a list with different tokens. Left recursive
+ * rules are not supported, and the parser must not be used from multiple threads at the same time.
+ *
+ * @author Iikka Hauhio
+ *
+ * @param <E> The type of the result
+ */
+public final class PackratParser<E> implements Parser<E> {
+
+	/**
+	 * The default maximum number of remembered results
+	 */
+	public static final int DEFAULT_MAX_ENTRIES = 1 << 18;
+
+	/* The number of slots searched for a key */
+	private static final int MAX_PROBES = 8;
+
+	private final Parser<E> parser;
+	private final int maxEntries;
+
+	/* The tokens the results were read from */
+	private TokenStorage owner;
+	/* The token index + 1 of each slot, or 0 if the slot is empty */
+	private int[] keys;
+	/* The index where the rule ended, or ~index if it failed */
+	private int[] ends;
+	/* The result, or the ParsingException if the rule failed */
+	private Object[] values;
+	private int size;
+
+	private PackratParser(Parser<E> parser, int maxEntries) {
+		if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive");
+		this.parser = parser;
+		this.maxEntries = maxEntries;
+		clear();
+	}
+
+	/**
+	 * Memoizes a parser
+	 *
+	 * @param parser The parser
+	 * @param <E> The type of the result
+	 * @return The memoizing parser
+	 */
+	public static <E> PackratParser<E> memoize(Parser<E> parser) {
+		return new PackratParser<>(parser, DEFAULT_MAX_ENTRIES);
+	}
+
+	/**
+	 * Memoizes a parser, remembering at most the given number of results
+	 *
+	 * @param parser The parser
+	 * @param maxEntries The maximum number of results
+	 * @param <E> The type of the result
+	 * @return The memoizing parser
+	 */
+	public static <E> PackratParser<E> memoize(Parser<E> parser, int maxEntries) {
+		return new PackratParser<>(parser, maxEntries);
+	}
+
+	/**
+	 * Forgets all results
+	 */
+	public void clear() {
+		int capacity = Integer.highestOneBit(Math.min(maxEntries, 16) * 2 - 1);
+		keys = new int[capacity];
+		ends = new int[capacity];
+		values = new Object[capacity];
+		size = 0;
+		owner = null;
+	}
+
+	/**
+	 * Returns the number of remembered results
+	 *
+	 * @return The size
+	 */
+	public int size() {
+		return size;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public E parse(TokenList tl) throws ParsingException {
+		if (tl.storage() != owner) {
+			if (owner != null) clear();
+			owner = tl.storage();
+		}
+		int start = tl.mark();
+		int slot = find(start);
+		if (slot >= 0) {
+			int end = ends[slot];
+			if (end < 0) {
+				tl.rewind(~end);
+				throw (ParsingException) values[slot];
+			}
+			tl.rewind(end);
+			return (E) values[slot];
+		}
+
+		E result;
+		try {
+			result = parser.parse(tl);
+		} catch (ParsingException e) {
+			put(start, ~tl.mark(), e);
+			throw e;
+		}
+		put(start, tl.mark(), result);
+		return result;
+	}
+
+	private static int hash(int index) {
+		int h = index * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	/* Returns the slot of a key, or -1 */
+	private int find(int index) {
+		int mask = keys.length - 1;
+		int slot = hash(index) & mask;
+		for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+			int key = keys[slot];
+			if (key == index + 1) return slot;
+			if (key == 0) return -1;
+		}
+		return -1;
+	}
+
+	private void put(int index, int end, Object value) {
+		if (size >= keys.length * 3 / 4 && keys.length < maxEntries) grow();
+		int mask = keys.length - 1;
+		int home = hash(index) & mask;
+		int slot = home;
+		for (int probe = 0; probe < MAX_PROBES; probe++, slot = (slot + 1) & mask) {
+			int key = keys[slot];
+			if (key == 0 || key == index + 1) {
+				if (key == 0) {
+					/* The table is full, so an old result is replaced instead */
+					if (size >= maxEntries) break;
+					size++;
+				}
+				set(slot, index, end, value);
+				return;
+			}
+		}
+		/* Replaces the result in the home slot. The slot stays occupied, so other keys are still found. */
+		if (keys[home] != 0) set(home, index, end, value);
+	}
+
+	private void set(int slot, int index, int end, Object value) {
+		keys[slot] = index + 1;
+		ends[slot] = end;
+		values[slot] = value;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys, oldEnds = ends;
+		Object[] oldValues = values;
+		keys = new int[oldKeys.length * 2];
+		ends = new int[keys.length];
+		values = new Object[keys.length];
+		size = 0;
+		for (int i = 0; i < oldKeys.length; i++)
+			if (oldKeys[i] != 0) put(oldKeys[i] - 1, oldEnds[i], oldValues[i]);
+	}
+}
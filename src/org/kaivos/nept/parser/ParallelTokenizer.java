@@ -0,0 +1,135 @@
+package org.kaivos.nept.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads tokens from an input kept in memory using multiple threads.
+ *
+ * The input is split to chunks at line breaks, and the chunks are scanned speculatively
+ * on the common fork-join pool as if each of them started between two tokens. A chunk
+ * is accepted if the scanner ended it between two tokens without looking past its end.
+ * Otherwise the chunk was split inside a comment, a string or a token, and the scan is
+ * resumed from the last position between two tokens it reached before the end, over
+ * the following chunks, until it ends cleanly at a chunk boundary. The scanning then
+ * continues with the speculative result of the next chunk. The result is the same as
+ * from a sequential scan.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+final class ParallelTokenizer {
+
+	/* Inputs shorter than two chunks are not split */
+	static final int MIN_CHUNK = 1 << 16;
+
+	private ParallelTokenizer() {}
+
+	/**
+	 * Reads tokens and appends the EOF text if there is one
+	 *
+	 * @param automaton The automaton
+	 * @param in The input, which must be kept in memory
+	 * @param file The name of the file
+	 * @param firstLine The line number of the input in the original file
+	 * @return The tokens
+	 */
+	static CompactTokenStorage tokenize(ScannerAutomaton automaton, ScanInput in, String file, int firstLine) {
+		int[] bounds = boundaries(in, ForkJoinPool.getCommonPoolParallelism() * 4);
+		int chunks = bounds.length - 1;
+		if (chunks == 1) {
+			CompactTokenStorage tokens = new CompactTokenStorage(in, file, firstLine, automaton.kindTexts);
+			automaton.tokenize(in, tokens);
+			return tokens;
+		}
+
+		List<ForkJoinTask<Chunk>> tasks = new ArrayList<>();
+		for (int k = 0; k < chunks; k++) {
+			int from = bounds[k], to = bounds[k+1];
+			tasks.add(ForkJoinPool.commonPool().submit(() -> scan(automaton, in, from, to, file, firstLine)));
+		}
+
+		CompactTokenStorage tokens = new CompactTokenStorage(in, file, firstLine, automaton.kindTexts);
+		int k = 0;
+		while (k < chunks) {
+			Chunk chunk = tasks.get(k).join();
+			int end = k + 1;
+			while (!chunk.clean && end < chunks) {
+				/* The scan resumes from the last safe position, and the slice at least doubles,
+				   so a comment or string spanning many chunks is read a bounded number of times */
+				int from = chunk.resume;
+				tokens.addBefore(chunk.tokens, from);
+				int target = 2 * bounds[end] - from;
+				do tasks.get(end++).cancel(false); while (end < chunks && bounds[end] < target);
+				chunk = scan(automaton, in, from, bounds[end], file, firstLine);
+			}
+			if (chunk.error != null) throw chunk.error;
+			tokens.addAll(chunk.tokens);
+			k = end;
+		}
+
+		automaton.appendEOF(in, tokens);
+		return tokens;
+	}
+
+	/**
+	 * Splits the input to chunks at line breaks
+	 *
+	 * @param in The input
+	 * @param chunks The preferred number of chunks
+	 * @return The start positions of the chunks, followed by the length of the input
+	 */
+	static int[] boundaries(ScanInput in, int chunks) {
+		int length = in.length();
+		int size = Math.max(MIN_CHUNK, length / chunks + 1);
+		List<Integer> bounds = new ArrayList<>();
+		bounds.add(0);
+		int pos = 0;
+		while (length - pos > size) {
+			int lineBreak = in.indexOf('\n', pos + size);
+			if (lineBreak < 0 || lineBreak + 1 >= length) break;
+			pos = lineBreak + 1;
+			bounds.add(pos);
+		}
+		bounds.add(length);
+		int[] array = new int[bounds.size()];
+		for (int i = 0; i < array.length; i++) array[i] = bounds.get(i);
+		return array;
+	}
+
+	private static Chunk scan(ScannerAutomaton automaton, ScanInput in, int from, int to, String file, int firstLine) {
+		ScanInput.SliceInput slice = new ScanInput.SliceInput(in, from, to);
+		CompactTokenStorage tokens = new CompactTokenStorage(in, file, firstLine, automaton.kindTexts);
+		boolean last = to == in.length();
+		try {
+			boolean between = automaton.scan(slice, tokens, from);
+			return new Chunk(tokens, last || between && !slice.crossed(), null, slice.safe());
+		} catch (RuntimeException e) {
+			/* An error caused by the end of the chunk is not an error in the whole input */
+			boolean clean = last || !slice.crossed();
+			return new Chunk(tokens, clean, clean ? e : null, slice.safe());
+		}
+	}
+
+	/**
+	 * The result of scanning a chunk
+	 */
+	private static final class Chunk {
+
+		final CompactTokenStorage tokens;
+		/* true if the tokens (or the error) are the same as in a sequential scan */
+		final boolean clean;
+		final RuntimeException error;
+		/* The position from which an unclean chunk is scanned again */
+		final int resume;
+
+		Chunk(CompactTokenStorage tokens, boolean clean, RuntimeException error, int resume) {
+			this.tokens = tokens;
+			this.clean = clean;
+			this.error = error;
+			this.resume = resume;
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package org.kaivos.nept.parser;
+
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded cache of parse results, for programs that parse the same short sources (filters, formulas,
+ * queries) many times. {@link #parse(TokenScanner, Parser, String, String)} tokenizes and parses a source
+ * only if the same source has not been parsed recently with the same scanner rules and parser.
+ *
+ * The key of an entry is the source, the file name, the parser object and the compiled rules of the
+ * scanner; adding a rule to the scanner compiles new rules, so old entries are no longer found. When
+ * several threads ask for the same key at the same time, the source is parsed once and the other
+ * threads wait for the result. Failed parses are not remembered. The cached results are shared between
+ * all callers and must not be modified.
+ *
+ * The cache holds at most the maximum number of entries, evicting them by an {@link Eviction} policy.
+ * Reading an entry updates the policy only if no other thread is updating it at the same time.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+public final class ParseCache {
+
+	/**
+	 * The eviction policies
+	 */
+	public enum Eviction {
+		/**
+		 * Evicts the least recently used entry
+		 */
+		LRU,
+		/**
+		 * Window TinyLFU: new entries enter a small LRU window, and leave it to the main area only if
+		 * they have been requested more often than the entry they would replace. Frequently requested
+		 * entries are not evicted by bursts of sources that are seen only once.
+		 */
+		TINY_LFU
+	}
+
+	private final int maxEntries;
+	private final Eviction eviction;
+
+	private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+	/* The state of the policy, guarded by the lock */
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Queue window = new Queue(), probation = new Queue(), protect = new Queue();
+	private final int windowMax, protectedMax;
+	private final FrequencySketch sketch;
+	private long evictions;
+
+	/**
+	 * Creates a cache with the LRU policy
+	 *
+	 * @param maxEntries The maximum number of entries
+	 */
+	public ParseCache(int maxEntries) {
+		this(maxEntries, Eviction.LRU);
+	}
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param maxEntries The maximum number of entries
+	 * @param eviction The eviction policy
+	 */
+	public ParseCache(int maxEntries, Eviction eviction) {
+		if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be positive");
+		this.maxEntries = maxEntries;
+		this.eviction = eviction;
+		if (eviction == Eviction.TINY_LFU) {
+			windowMax = Math.max(1, maxEntries / 100);
+			protectedMax = (maxEntries - windowMax) * 4 / 5;
+			sketch = new FrequencySketch(maxEntries);
+		} else {
+			windowMax = maxEntries;
+			protectedMax = 0;
+			sketch = null;
+		}
+	}
+
+	/**
+	 * Tokenizes and parses a source, or returns the result of an earlier parse of the same source
+	 *
+	 * @param scanner The scanner
+	 * @param parser The parser
+	 * @param source The source
+	 * @param file The file name given to the scanner
+	 * @param <E> The type of the result
+	 * @return The result
+	 * @throws ParsingException on syntax error
+	 */
+	@SuppressWarnings("unchecked")
+	public <E> E parse(TokenScanner scanner, Parser<E> parser, String source, String file) throws ParsingException {
+		Key key = new Key(scanner.automaton(), parser, source, file);
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			Entry created = new Entry(key);
+			entry = entries.putIfAbsent(key, created);
+			if (entry == null) {
+				misses.increment();
+				return (E) load(created, scanner, parser);
+			}
+		}
+		hits.increment();
+		if (lock.tryLock()) {
+			try {
+				access(entry);
+			} finally {
+				lock.unlock();
+			}
+		}
+		try {
+			return (E) entry.value.join();
+		} catch (CompletionException e) {
+			/* Another thread failed to parse the source */
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw e;
+		}
+	}
+
+	private Object load(Entry entry, TokenScanner scanner, Parser<?> parser) {
+		Object value;
+		try {
+			value = parser.parse(scanner.tokenize(entry.key.source, entry.key.file));
+		} catch (RuntimeException | Error e) {
+			entries.remove(entry.key, entry);
+			entry.value.completeExceptionally(e);
+			throw e;
+		}
+		entry.value.complete(value);
+		lock.lock();
+		try {
+			/* The entry was removed by clear() */
+			if (entries.get(entry.key) == entry) add(entry);
+		} finally {
+			lock.unlock();
+		}
+		return value;
+	}
+
+	/**
+	 * Removes all entries. Sources that are being parsed are not remembered.
+	 */
+	public void clear() {
+		lock.lock();
+		try {
+			entries.clear();
+			window.clear();
+			probation.clear();
+			protect.clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of remembered results, including those that are being parsed
+	 *
+	 * @return The number of entries
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Returns the number of calls that found an earlier or ongoing parse of the source
+	 *
+	 * @return The number of hits
+	 */
+	public long hitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * Returns the number of calls that parsed the source
+	 *
+	 * @return The number of misses
+	 */
+	public long missCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the number of entries removed to keep the size of the cache under the maximum
+	 *
+	 * @return The number of evictions
+	 */
+	public long evictionCount() {
+		lock.lock();
+		try {
+			return evictions;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the ratio of hits to all calls
+	 *
+	 * @return The hit rate, or 0 if the cache has not been used
+	 */
+	public double hitRate() {
+		long h = hits.sum(), total = h + misses.sum();
+		return total == 0 ? 0 : (double) h / total;
+	}
+
+	@Override
+	public String toString() {
+		return "ParseCache[" + eviction + ", " + size() + "/" + maxEntries + " entries, "
+				+ hitCount() + " hits, " + missCount() + " misses, " + evictionCount() + " evictions]";
+	}
+
+	/* Policy */
+
+	private void add(Entry entry) {
+		if (sketch != null) sketch.increment(entry.key.hash);
+		window.addLast(entry);
+		if (window.size <= windowMax) return;
+		Entry candidate = window.first();
+		if (sketch == null) {
+			evict(candidate);
+			return;
+		}
+		/* The oldest entry of the window competes with the oldest entry of the main area */
+		window.remove(candidate);
+		probation.addLast(candidate);
+		if (probation.size + protect.size <= maxEntries - windowMax) return;
+		Entry victim = probation.first();
+		if (victim == candidate || sketch.frequency(candidate.key.hash) <= sketch.frequency(victim.key.hash)) {
+			evict(candidate);
+		} else {
+			evict(victim);
+		}
+	}
+
+	private void access(Entry entry) {
+		if (entry.queue == null) return;
+		if (sketch != null) sketch.increment(entry.key.hash);
+		if (entry.queue == probation) {
+			probation.remove(entry);
+			protect.addLast(entry);
+			if (protect.size > protectedMax) {
+				Entry demoted = protect.first();
+				protect.remove(demoted);
+				probation.addLast(demoted);
+			}
+		} else {
+			Queue queue = entry.queue;
+			queue.remove(entry);
+			queue.addLast(entry);
+		}
+	}
+
+	private void evict(Entry entry) {
+		entry.queue.remove(entry);
+		entries.remove(entry.key, entry);
+		evictions++;
+	}
+
+	/* Entries */
+
+	private static final class Key {
+
+		final ScannerAutomaton automaton;
+		final Parser<?> parser;
+		final String source, file;
+		final int hash;
+
+		Key(ScannerAutomaton automaton, Parser<?> parser, String source, String file) {
+			this.automaton = automaton;
+			this.parser = parser;
+			this.source = source;
+			this.file = file;
+			int h = source.hashCode();
+			h = 31 * h + Objects.hashCode(file);
+			h = 31 * h + System.identityHashCode(parser);
+			h = 31 * h + System.identityHashCode(automaton);
+			hash = h;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return hash == k.hash && automaton == k.automaton && parser == k.parser
+					&& source.equals(k.source) && Objects.equals(file, k.file);
+		}
+	}
+
+	private static final class Entry {
+
+		final Key key;
+		final CompletableFuture<Object> value = new CompletableFuture<>();
+
+		/* The queue of the policy containing the entry, or null */
+		Queue queue;
+		Entry prev, next;
+
+		Entry(Key key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A doubly linked list of entries from the least to the most recently used
+	 */
+	private static final class Queue {
+
+		private final Entry head = new Entry(null);
+		int size;
+
+		Queue() {
+			clear();
+		}
+
+		Entry first() {
+			return head.next;
+		}
+
+		void addLast(Entry e) {
+			e.prev = head.prev;
+			e.next = head;
+			head.prev.next = e;
+			head.prev = e;
+			e.queue = this;
+			size++;
+		}
+
+		void remove(Entry e) {
+			e.prev.next = e.next;
+			e.next.prev = e.prev;
+			e.prev = e.next = null;
+			e.queue = null;
+			size--;
+		}
+
+		void clear() {
+			for (Entry e = head.next; e != null && e != head; e = e.next) e.queue = null;
+			head.prev = head.next = head;
+			size = 0;
+		}
+	}
+
+	/**
+	 * Estimates how often keys have been requested with a count-min sketch of 4-bit counters.
+	 * The counters are halved after a number of requests, so that old requests are forgotten.
+	 */
+	private static final class FrequencySketch {
+
+		private static final int[] SEEDS = { 0x97cb3127, 0x9e3779b9, 0x7f4a7c15, 0xc2b2ae35 };
+
+		private final long[] table;
+		private final int mask;
+		private final int sampleSize;
+		private int additions;
+
+		FrequencySketch(int maxEntries) {
+			int size = Integer.highestOneBit(Math.max(maxEntries, 16) * 2 - 1);
+			table = new long[size];
+			mask = size - 1;
+			sampleSize = 10 * Math.max(maxEntries, 16);
+		}
+
+		private static int spread(int hash, int i) {
+			int h = (hash ^ SEEDS[i]) * 0x85ebca6b;
+			return h ^ (h >>> 15);
+		}
+
+		int frequency(int hash) {
+			int min = 15;
+			for (int i = 0; i < 4; i++) {
+				int h = spread(hash, i);
+				min = Math.min(min, (int) (table[h & mask] >>> ((h >>> 28) << 2)) & 15);
+			}
+			return min;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for (int i = 0; i < 4; i++) {
+				int h = spread(hash, i);
+				int shift = (h >>> 28) << 2;
+				if (((table[h & mask] >>> shift) & 15) < 15) {
+					table[h & mask] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && ++additions == sampleSize) {
+				for (int i = 0; i < table.length; i++) table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+				additions /= 2;
+			}
+		}
+	}
+}
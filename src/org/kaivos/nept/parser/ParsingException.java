@@ -15,6 +15,8 @@ public class ParsingException extends RuntimeException {
 
 	String message;
 	Token token;
+	/* The expected keywords, if the message has not been built yet */
+	private String[] expected;
 	
 	/**
 	 * The default constructor
@@ -27,8 +29,30 @@ public class ParsingException extends RuntimeException {
 		this.token = token;
 	}
 	
+	/**
+	 * Creates an exception without a stack trace if writableStackTrace is false.
+	 * Such exceptions are cheap to create, and are used when a failure is expected to be caught
+	 * (see {@link TokenList#tryParse(Parser)}).
+	 * 
+	 * @param message The message
+	 * @param token The erronous token
+	 * @param writableStackTrace Whether the stack trace should be filled in
+	 */
+	protected ParsingException(String message, Token token, boolean writableStackTrace) {
+		super(null, null, false, writableStackTrace);
+		this.message = message;
+		this.token = token;
+	}
+	
+	/* An "Expected ..." error whose message is built when it is requested */
+	ParsingException(String[] expected, Token token, boolean writableStackTrace) {
+		this((String) null, token, writableStackTrace);
+		this.expected = expected;
+	}
+	
 	@Override
 	public String getMessage() {
+		if (message == null && expected != null) message = TokenList.expected(expected);
 		return "Syntax error on token `" + token.getToken() + "' in " + token.getFile() + ":" + token.getLine() + ": " + message;
 	}
 	
@@ -0,0 +1,215 @@
+package org.kaivos.nept.parser;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled pattern rules of a scanner.
+ *
+ * The rules are dispatched by the character they can start with. All rules that share
+ * a start character are combined into one alternation, which is matched anchored
+ * at the current position of the input.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+final class PatternRules {
+
+	/* Rejects empty matches, which would never advance the scanner */
+	private static final String NOT_EMPTY = "(?<=[\\s\\S])";
+
+	private static final Pattern BACK_REFERENCE = Pattern.compile("\\\\(?:[1-9]|k<)");
+	private static final Pattern NAMED_GROUP = Pattern.compile("\\(\\?<[a-zA-Z]");
+
+	/* The bucket of each start character in pages of 256 characters, or -1. Pages without buckets are null. */
+	private final int[][] bucketPages = new int[256][];
+	/* The indices of the compiled patterns of each bucket, tried in order */
+	private final int[][] buckets;
+	private final Pattern[] compiled;
+
+	/**
+	 * Compiles the pattern rules
+	 *
+	 * @param patterns The patterns, in the order they were declared
+	 * @param startsWith The characters that can start each pattern, or empty arrays if they should be derived from the pattern
+	 */
+	PatternRules(List<Pattern> patterns, List<char[]> startsWith) {
+		/* The rules that can start with each character */
+		HashMap<Character, List<Integer>> rulesOf = new HashMap<>();
+
+		for (int rule = 0; rule < patterns.size(); rule++) {
+			Pattern p = patterns.get(rule);
+			char[] chars = startsWith.get(rule);
+			if (chars.length == 0) {
+				char[] text = new char[1];
+				Matcher m = p.matcher(CharBuffer.wrap(text));
+				for (int chr = 0; chr <= Character.MAX_VALUE; chr++) {
+					text[0] = (char) chr;
+					/* A lone high surrogate can't be tested, so the pattern is tried on all of them */
+					if (Character.isHighSurrogate((char) chr) || canStart(m.reset()))
+						addRule(rulesOf, (char) chr, rule);
+				}
+			} else {
+				for (char chr : chars) addRule(rulesOf, chr, rule);
+			}
+		}
+
+		List<int[]> bucketList = new ArrayList<>();
+		List<Pattern> compiledList = new ArrayList<>();
+		HashMap<List<Integer>, Integer> bucketIds = new HashMap<>();
+		HashMap<List<Integer>, Integer> compiledIds = new HashMap<>();
+		for (Map.Entry<Character, List<Integer>> e : rulesOf.entrySet()) {
+			char chr = e.getKey();
+			int[] page = bucketPages[chr >>> 8];
+			if (page == null) {
+				page = bucketPages[chr >>> 8] = new int[256];
+				Arrays.fill(page, -1);
+			}
+			page[chr & 0xff] = bucket(patterns, e.getValue(), bucketList, compiledList, bucketIds, compiledIds);
+		}
+		buckets = bucketList.toArray(new int[0][]);
+		compiled = compiledList.toArray(new Pattern[0]);
+	}
+
+	private static void addRule(HashMap<Character, List<Integer>> rulesOf, char chr, int rule) {
+		List<Integer> rules = rulesOf.get(chr);
+		if (rules == null) rulesOf.put(chr, rules = new ArrayList<>());
+		if (!rules.contains(rule)) rules.add(rule);
+	}
+
+	/* Tests if a pattern can match a string starting with the only character of the input of the matcher */
+	private static boolean canStart(Matcher m) {
+		return m.lookingAt() && m.end() > 0 || m.hitEnd();
+	}
+
+	private static int bucket(List<Pattern> patterns, List<Integer> rules,
+			List<int[]> bucketList, List<Pattern> compiledList,
+			HashMap<List<Integer>, Integer> bucketIds, HashMap<List<Integer>, Integer> compiledIds) {
+		if (rules.isEmpty()) return -1;
+		Integer id = bucketIds.get(rules);
+		if (id != null) return id;
+
+		/* Splits the rules to runs of patterns that can be combined */
+		List<Integer> indices = new ArrayList<>();
+		List<Integer> run = new ArrayList<>();
+		for (int rule : rules) {
+			if (combinable(patterns.get(rule))) {
+				run.add(rule);
+			} else {
+				if (!run.isEmpty()) indices.add(compile(patterns, run, compiledList, compiledIds));
+				run = new ArrayList<>();
+				run.add(rule);
+				indices.add(compile(patterns, run, compiledList, compiledIds));
+				run = new ArrayList<>();
+			}
+		}
+		if (!run.isEmpty()) indices.add(compile(patterns, run, compiledList, compiledIds));
+
+		int[] bucket = new int[indices.size()];
+		for (int i = 0; i < bucket.length; i++) bucket[i] = indices.get(i);
+		bucketList.add(bucket);
+		bucketIds.put(rules, bucketList.size() - 1);
+		return bucketList.size() - 1;
+	}
+
+	private static int compile(List<Pattern> patterns, List<Integer> rules,
+			List<Pattern> compiledList, HashMap<List<Integer>, Integer> compiledIds) {
+		Integer id = compiledIds.get(rules);
+		if (id != null) return id;
+		Pattern p;
+		if (rules.size() == 1 && !combinable(patterns.get(rules.get(0)))) {
+			p = patterns.get(rules.get(0));
+		} else {
+			StringBuilder regex = new StringBuilder();
+			for (int rule : rules) {
+				if (regex.length() > 0) regex.append('|');
+				regex.append(alternative(patterns.get(rule)));
+			}
+			p = Pattern.compile(regex.toString());
+		}
+		compiledList.add(p);
+		compiledIds.put(new ArrayList<>(rules), compiledList.size() - 1);
+		return compiledList.size() - 1;
+	}
+
+	/* Numbered back references would refer to wrong groups in an alternation, and a group name can be defined only once */
+	private static boolean combinable(Pattern p) {
+		if ((p.flags() & Pattern.CANON_EQ) != 0) return false;
+		if ((p.flags() & Pattern.LITERAL) != 0) return true;
+		return !BACK_REFERENCE.matcher(p.pattern()).find() && !NAMED_GROUP.matcher(p.pattern()).find();
+	}
+
+	private static String alternative(Pattern p) {
+		int flags = p.flags();
+		String regex = (flags & Pattern.LITERAL) != 0 ? Pattern.quote(p.pattern()) : p.pattern();
+		StringBuilder inline = new StringBuilder();
+		if ((flags & Pattern.CASE_INSENSITIVE) != 0) inline.append('i');
+		if ((flags & Pattern.MULTILINE) != 0) inline.append('m');
+		if ((flags & Pattern.DOTALL) != 0) inline.append('s');
+		if ((flags & Pattern.UNICODE_CASE) != 0) inline.append('u');
+		if ((flags & Pattern.COMMENTS) != 0) {
+			inline.append('x');
+			/* Ends a possible comment before the closing parenthesis */
+			regex += "\n";
+		}
+		if ((flags & Pattern.UNIX_LINES) != 0) inline.append('d');
+		if ((flags & Pattern.UNICODE_CHARACTER_CLASS) != 0) inline.append('U');
+		return "(?:(?" + inline + ":" + regex + ")" + NOT_EMPTY + ")";
+	}
+
+	/**
+	 * Tests if any pattern can start with a character
+	 *
+	 * @param chr The character
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	boolean canStart(char chr) {
+		return bucketOf(chr) >= 0;
+	}
+
+	private int bucketOf(char chr) {
+		int[] page = bucketPages[chr >>> 8];
+		return page == null ? -1 : page[chr & 0xff];
+	}
+
+	/**
+	 * Creates the array of matchers used by {@link #match(ScanInput, int, Matcher[])}.
+	 * The matchers are reused during one scan.
+	 *
+	 * @return The array
+	 */
+	Matcher[] newMatchers() {
+		return new Matcher[compiled.length];
+	}
+
+	/**
+	 * Matches the patterns anchored at a position
+	 *
+	 * @param in The input
+	 * @param i The position
+	 * @param matchers The matchers returned by {@link #newMatchers()}
+	 * @return The end of the match, or -1 if no pattern matched
+	 */
+	int match(ScanInput in, int i, Matcher[] matchers) {
+		char chr = in.charAt(i);
+		int bucket = bucketOf(chr);
+		if (bucket < 0) return -1;
+		for (int index : buckets[bucket]) {
+			Matcher m = matchers[index];
+			if (m == null) m = matchers[index] = compiled[index].matcher(in);
+			boolean found;
+			do {
+				m.region(i, in.length());
+				found = m.lookingAt();
+			} while (m.hitEnd() && in.has(in.length()));
+			if (found && m.end() > i) return m.end();
+		}
+		return -1;
+	}
+}
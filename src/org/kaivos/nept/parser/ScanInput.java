@@ -0,0 +1,623 @@
+package org.kaivos.nept.parser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The source read by the scanner. Positions are absolute offsets from the start of the input.
+ *
+ * An input may be loaded incrementally: {@link #has(int)} reads more of it when needed,
+ * and {@link #length()} returns the number of characters loaded so far.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+abstract class ScanInput implements CharSequence {
+
+	/* The position up to which the lines have been counted */
+	private int countedPos = 0;
+	private int countedLines = 0;
+	private int lineStart = 0;
+	/* A position whose location is kept, see pin() */
+	private int pinnedPos = -1, pinnedLines, pinnedLineStart;
+
+	/**
+	 * Tests if the input has a character at the given position, loading more of it if needed
+	 *
+	 * @param pos The position
+	 * @return <code>true</code> if there is a character at pos, otherwise <code>false</code>
+	 * @throws UncheckedIOException on io error
+	 */
+	abstract boolean has(int pos);
+
+	/**
+	 * Tests if the scanner should continue reading at the given position. Unlike {@link #has(int)},
+	 * this is not a lookahead: the scanner has read all characters before pos.
+	 *
+	 * @param pos The position
+	 * @return <code>true</code> if there is a character at pos, otherwise <code>false</code>
+	 */
+	boolean hasNext(int pos) {
+		return has(pos);
+	}
+
+	/**
+	 * Tells the input that characters before pos will not be read again
+	 *
+	 * @param pos The position
+	 */
+	void release(int pos) {}
+
+	/**
+	 * Tests if the input drops the characters released with {@link #release(int)}, so that
+	 * they can't be read again
+	 *
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	boolean releases() {
+		return false;
+	}
+
+	/**
+	 * Returns the number of line breaks before the given position.
+	 * Positions must be queried in nondecreasing order, unless the whole input is kept in memory.
+	 *
+	 * @param pos The position
+	 * @return The number of line breaks
+	 */
+	int lineAt(int pos) {
+		if (pos == pinnedPos) return pinnedLines;
+		if (pos < countedPos) {
+			countedPos = countedLines = lineStart = 0;
+		}
+		int end = has(pos-1) ? pos : length();
+		for (int i = countedPos; i < end; i++) {
+			if (charAt(i) == '\n') {
+				countedLines++;
+				lineStart = i+1;
+			}
+		}
+		countedPos = pos;
+		return countedLines;
+	}
+
+	/**
+	 * Counts the line breaks before pos, if they have not been counted yet
+	 *
+	 * @param pos The position
+	 */
+	void countLines(int pos) {
+		if (pos > countedPos) lineAt(pos);
+	}
+
+	/**
+	 * Remembers the location of a position, so that it can be queried after the characters
+	 * before later positions have been released
+	 *
+	 * @param pos The position, not before the positions queried earlier
+	 */
+	void pin(int pos) {
+		pinnedLines = lineAt(pos);
+		pinnedLineStart = lineStart;
+		pinnedPos = pos;
+	}
+
+	/**
+	 * Returns the column of the given position, counting from 1
+	 *
+	 * @param pos The position
+	 * @return The column
+	 */
+	int columnAt(int pos) {
+		if (pos == pinnedPos) return pos - pinnedLineStart + 1;
+		lineAt(pos);
+		return pos - lineStart + 1;
+	}
+
+	/**
+	 * Tests if the input contains the sequence at the given position
+	 *
+	 * @param seq The sequence
+	 * @param pos The position
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	boolean startsWith(String seq, int pos) {
+		if (!has(pos + seq.length() - 1)) return false;
+		for (int i = 0; i < seq.length(); i++)
+			if (charAt(pos + i) != seq.charAt(i)) return false;
+		return true;
+	}
+
+	/**
+	 * Returns the position of the next occurrence of a character
+	 *
+	 * @param chr The character
+	 * @param from The position where the search starts
+	 * @return The position, or -1 if the character does not occur after from
+	 */
+	int indexOf(char chr, int from) {
+		for (int i = from; has(i); i++)
+			if (charAt(i) == chr) return i;
+		return -1;
+	}
+
+	/**
+	 * Returns the position of the next occurrence of either of two characters
+	 *
+	 * @param a The first character
+	 * @param b The second character
+	 * @param from The position where the search starts
+	 * @return The position, or -1 if neither character occurs after from
+	 */
+	int indexOfAny(char a, char b, int from) {
+		for (int i = from; has(i); i++) {
+			char chr = charAt(i);
+			if (chr == a || chr == b) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the position of the next occurrence of a sequence. The characters before
+	 * the occurrence are released.
+	 *
+	 * @param seq The sequence
+	 * @param from The position where the search starts
+	 * @return The position, or -1 if the sequence does not occur after from
+	 */
+	int indexOf(String seq, int from) {
+		for (int i = from; ; i++) {
+			release(i);
+			if (startsWith(seq, i)) return i;
+			if (!has(i)) return -1;
+		}
+	}
+
+	/**
+	 * Skips characters below 256 that are in a set
+	 *
+	 * @param pos The position where the skipping starts
+	 * @param set The set, indexed by the characters
+	 * @param release true if the skipped characters can be released
+	 * @return The first position at or after pos whose character is not in the set, or the length of the input
+	 */
+	int skip(int pos, boolean[] set, boolean release) {
+		while (true) {
+			if (release) release(pos);
+			if (!has(pos)) return pos;
+			char chr = charAt(pos);
+			if (chr >= 256 || !set[chr]) return pos;
+			pos++;
+		}
+	}
+
+	/**
+	 * Returns the characters between start and end as a string
+	 *
+	 * @param start The start position, inclusive
+	 * @param end The end position, exclusive
+	 * @return The string
+	 */
+	abstract String substring(int start, int end);
+
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return substring(start, end);
+	}
+
+	/**
+	 * A string
+	 */
+	static final class StringInput extends ScanInput {
+
+		private final String source;
+		private final int length;
+
+		StringInput(String source) {
+			this.source = source;
+			this.length = source.length();
+		}
+
+		@Override
+		boolean has(int pos) {
+			return pos < length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int pos) {
+			return source.charAt(pos);
+		}
+
+		@Override
+		boolean startsWith(String seq, int pos) {
+			return source.startsWith(seq, pos);
+		}
+
+		@Override
+		int indexOf(char chr, int from) {
+			return source.indexOf(chr, from);
+		}
+
+		@Override
+		int indexOfAny(char a, char b, int from) {
+			for (int i = from; i < length; i++) {
+				char chr = source.charAt(i);
+				if (chr == a || chr == b) return i;
+			}
+			return -1;
+		}
+
+		@Override
+		int indexOf(String seq, int from) {
+			return source.indexOf(seq, from);
+		}
+
+		@Override
+		int skip(int pos, boolean[] set, boolean release) {
+			while (pos < length) {
+				char chr = source.charAt(pos);
+				if (chr >= 256 || !set[chr]) break;
+				pos++;
+			}
+			return pos;
+		}
+
+		@Override
+		String substring(int start, int end) {
+			return source.substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return source;
+		}
+	}
+
+	/**
+	 * A reader, read to a fixed-size buffer that grows only if a single
+	 * lookahead does not fit in it
+	 */
+	static final class ReaderInput extends ScanInput {
+
+		static final int BUFFER_SIZE = 8192;
+
+		private final Reader reader;
+		private char[] buffer = new char[BUFFER_SIZE];
+		/* The absolute position of buffer[0] */
+		private int base = 0;
+		/* The number of characters in the buffer */
+		private int limit = 0;
+		/* The first position that is still needed */
+		private int mark = 0;
+		private boolean eof = false;
+
+		ReaderInput(Reader reader) {
+			this.reader = reader;
+		}
+
+		@Override
+		boolean has(int pos) {
+			while (pos >= base + limit) {
+				if (eof || !fill(pos)) return false;
+			}
+			return true;
+		}
+
+		private boolean fill(int pos) {
+			/* Drops the released characters */
+			int drop = Math.min(mark, base + limit) - base;
+			if (drop > 0) {
+				countLines(base + drop);
+				System.arraycopy(buffer, drop, buffer, 0, limit - drop);
+				limit -= drop;
+				base += drop;
+			}
+			if (limit == buffer.length || pos - base >= buffer.length) {
+				int size = buffer.length * 2;
+				while (size <= pos - base) size *= 2;
+				buffer = Arrays.copyOf(buffer, size);
+			}
+			try {
+				int n = reader.read(buffer, limit, buffer.length - limit);
+				if (n < 0) {
+					eof = true;
+					return false;
+				}
+				limit += n;
+				return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		void release(int pos) {
+			mark = pos;
+		}
+
+		@Override
+		boolean releases() {
+			return true;
+		}
+
+		@Override
+		int skip(int pos, boolean[] set, boolean release) {
+			while (true) {
+				int end = base + limit;
+				while (pos < end) {
+					char chr = buffer[pos - base];
+					if (chr >= 256 || !set[chr]) return pos;
+					pos++;
+				}
+				if (release) mark = pos;
+				if (!has(pos)) return pos;
+			}
+		}
+
+		@Override
+		public int length() {
+			return base + limit;
+		}
+
+		@Override
+		public char charAt(int pos) {
+			return buffer[pos - base];
+		}
+
+		@Override
+		String substring(int start, int end) {
+			return new String(buffer, start - base, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(buffer, 0, limit);
+		}
+	}
+
+	/**
+	 * Bytes of a pure-ASCII input, scanned as characters without decoding them first
+	 */
+	static final class AsciiInput extends ScanInput {
+
+		private final ByteBuffer bytes;
+		private final int length;
+
+		AsciiInput(ByteBuffer bytes) {
+			this.bytes = bytes;
+			this.length = bytes.limit();
+		}
+
+		/**
+		 * Tests if all bytes of the buffer are ASCII characters
+		 *
+		 * @param bytes The buffer
+		 * @return <code>true</code> or <code>false</code>
+		 */
+		static boolean isAscii(ByteBuffer bytes) {
+			int length = bytes.limit();
+			int i = 0;
+			for (; i + 8 <= length; i += 8)
+				if ((bytes.getLong(i) & 0x8080808080808080L) != 0) return false;
+			for (; i < length; i++)
+				if (bytes.get(i) < 0) return false;
+			return true;
+		}
+
+		@Override
+		boolean has(int pos) {
+			return pos < length;
+		}
+
+		@Override
+		public int length() {
+			return length;
+		}
+
+		@Override
+		public char charAt(int pos) {
+			return (char) bytes.get(pos);
+		}
+
+		/* Tests if any byte of x is zero */
+		private static boolean hasZeroByte(long x) {
+			return ((x - 0x0101010101010101L) & ~x & 0x8080808080808080L) != 0;
+		}
+
+		@Override
+		int indexOf(char chr, int from) {
+			if (chr >= 128) return -1;
+			return indexOfAny(chr, chr, from);
+		}
+
+		/* Compares eight bytes at a time to both characters */
+		@Override
+		int indexOfAny(char a, char b, int from) {
+			long patternA = (a < 128 ? a : 0xff) * 0x0101010101010101L;
+			long patternB = (b < 128 ? b : 0xff) * 0x0101010101010101L;
+			int i = from;
+			for (; i + 8 <= length; i += 8) {
+				long x = bytes.getLong(i);
+				if (hasZeroByte(x ^ patternA) || hasZeroByte(x ^ patternB)) break;
+			}
+			for (; i < length; i++) {
+				byte chr = bytes.get(i);
+				if (chr == a || chr == b) return i;
+			}
+			return -1;
+		}
+
+		@Override
+		int indexOf(String seq, int from) {
+			for (int i = indexOf(seq.charAt(0), from); i >= 0; i = indexOf(seq.charAt(0), i+1))
+				if (startsWith(seq, i)) return i;
+			return -1;
+		}
+
+		@Override
+		int skip(int pos, boolean[] set, boolean release) {
+			while (pos < length && set[bytes.get(pos)]) pos++;
+			return pos;
+		}
+
+		@Override
+		boolean startsWith(String seq, int pos) {
+			if (pos + seq.length() > length) return false;
+			for (int i = 0; i < seq.length(); i++)
+				if (bytes.get(pos + i) != seq.charAt(i)) return false;
+			return true;
+		}
+
+		@Override
+		String substring(int start, int end) {
+			byte[] text = new byte[end - start];
+			for (int i = 0; i < text.length; i++)
+				text[i] = bytes.get(start + i);
+			return new String(text, StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public String toString() {
+			return substring(0, length);
+		}
+	}
+
+	/**
+	 * A part of an input that is kept in memory. Positions are the same as in the whole input.
+	 * The slice records whether the scanner looked past its end.
+	 */
+	static final class SliceInput extends ScanInput {
+
+		private final ScanInput input;
+		private final int from, to;
+		private boolean crossed = false;
+		private int safe;
+
+		SliceInput(ScanInput input, int from, int to) {
+			this.input = input;
+			this.from = from;
+			this.to = to;
+			this.safe = from;
+		}
+
+		/**
+		 * Returns the last position between two tokens that the scanner reached before looking
+		 * past the end of the slice. The tokens starting before it are not affected by the end.
+		 *
+		 * @return The position
+		 */
+		int safe() {
+			return safe;
+		}
+
+		@Override
+		void release(int pos) {
+			if (!crossed) safe = pos;
+		}
+
+		/**
+		 * Tests if the scanner looked at a character after the end of the slice
+		 *
+		 * @return <code>true</code> or <code>false</code>
+		 */
+		boolean crossed() {
+			return crossed;
+		}
+
+		@Override
+		boolean has(int pos) {
+			if (pos < to) return true;
+			crossed = true;
+			return false;
+		}
+
+		@Override
+		boolean hasNext(int pos) {
+			return pos < to;
+		}
+
+		@Override
+		int indexOfAny(char a, char b, int from) {
+			int i = input.indexOfAny(a, b, from);
+			if (i >= 0 && i < to) return i;
+			crossed = true;
+			return -1;
+		}
+
+		@Override
+		int indexOf(String seq, int from) {
+			int i = input.indexOf(seq, from);
+			if (i >= 0 && i + seq.length() <= to) return i;
+			crossed = true;
+			return -1;
+		}
+
+		@Override
+		int skip(int pos, boolean[] set, boolean release) {
+			return Math.min(input.skip(pos, set, release), Math.max(pos, to));
+		}
+
+		@Override
+		public int length() {
+			return to;
+		}
+
+		@Override
+		public char charAt(int pos) {
+			return input.charAt(pos);
+		}
+
+		@Override
+		String substring(int start, int end) {
+			return input.substring(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return input.substring(from, to);
+		}
+	}
+
+	/**
+	 * A reader decoding a byte buffer in chunks
+	 */
+	static final class DecodingReader extends Reader {
+
+		private final ByteBuffer bytes;
+		private final CharsetDecoder decoder;
+		private boolean flushed = false;
+
+		DecodingReader(ByteBuffer bytes, CharsetDecoder decoder) {
+			this.bytes = bytes.duplicate();
+			this.decoder = decoder;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (flushed) return -1;
+			CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+			CoderResult result = decoder.decode(bytes, out, true);
+			if (result.isError()) result.throwException();
+			if (!bytes.hasRemaining() && result.isUnderflow()) {
+				flushed = decoder.flush(out).isUnderflow();
+			}
+			int n = out.position() - off;
+			return n == 0 && flushed ? -1 : n;
+		}
+
+		@Override
+		public void close() {}
+	}
+}
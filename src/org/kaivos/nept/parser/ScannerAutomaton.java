@@ -0,0 +1,582 @@
+package org.kaivos.nept.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+
+/**
+ * An immutable lexing automaton compiled from the rules of a {@link TokenScanner}.
+ *
+ * All literal rules (ignored sequences, comment and string delimiters and operators)
+ * are merged into one deterministic automaton, so that every rule starting at a position
+ * is found in a single walk with one table lookup per character. Operators use the
+ * longest match.
+ *
+ * @author Iikka Hauhio
+ *
+ */
+final class ScannerAutomaton {
+
+	static final int IGNORE = 0, COMMENT = 1, STRING = 2, OPERATOR = 3;
+	private static final int CATEGORIES = 4;
+
+	/* Character classes: 0 is used by all characters not appearing in any literal.
+	 * The classes are stored in pages of 256 characters, and pages without literal characters are null. */
+	private final short[][] classPages = new short[256][];
+	private final short[] latinClasses = classPages[0] = new short[256];
+	private final int classCount;
+
+	/* transitions[state*classCount + class], -1 if there is no transition */
+	private final int[] transitions;
+	/* accepts[state*CATEGORIES + category], the index of the accepted rule or -1 */
+	private final int[] accepts;
+	private final boolean[] accepting;
+	/* A generated class walking the same trie, or null if the tables are used */
+	private final LiteralMatcher matcher;
+
+	/* true if a character below 256 can't start any rule and is appended to the current token */
+	private final boolean[] plain = new boolean[256];
+	private final boolean[] ignoredLatin = new boolean[256];
+
+	private final String[] ignoreSeqs;
+	private final String[] commentStarts, commentEnds;
+	private final String[] stringStarts, stringEnds;
+	private final char[] stringEscapes;
+	private final String[] operators;
+
+	private final PatternRules patterns;
+
+	/* The escape code of each character in pages of 256 characters: i+1 for the escape code i,
+	 * -i-1 for the character escape code i or 0 if the character is not an escape code */
+	private final int[][] escapePages = new int[256][];
+	private final String[] escapeReplacements;
+	private final int[] charEscapeDigits, charEscapeRadixes;
+	private final boolean lazyStrings;
+
+	/* The canonical text of each kind, null for unregistered kinds */
+	final String[] kindTexts;
+	/* An open-addressing hash table from registered texts to their kinds */
+	private final String[] kindTable;
+	private final int[] kindTableKinds;
+	private final int[] operatorKinds, stringStartKinds, stringEndKinds;
+	private final int eofKind;
+
+	/* The number of characters after a position that a rule can read. Pattern rules can read
+	   to the end of the input, so with them this is Integer.MAX_VALUE. */
+	final int lookahead;
+
+	private final boolean ignoreWhitespace;
+	private final char[] dontIgnore;
+	private final boolean allPunctuation;
+	private final String EOF;
+
+	ScannerAutomaton(TokenScanner scanner) {
+		List<TokenScanner.Pair<String, String>> commentList = scanner.ignoreBlocks;
+		List<TokenScanner.Trair<String, String, Character>> stringList = scanner.stringBlocks;
+		List<String> operatorList = new ArrayList<>(scanner.operators);
+		operatorList.addAll(TokenScanner.characters(scanner.oneCharOperators));
+		patterns = new PatternRules(scanner.patterns, scanner.patternStarts);
+
+		ignoreSeqs = scanner.ignore.toArray(new String[0]);
+		commentStarts = new String[commentList.size()];
+		commentEnds = new String[commentList.size()];
+		for (int i = 0; i < commentList.size(); i++) {
+			commentStarts[i] = commentList.get(i).getA();
+			commentEnds[i] = commentList.get(i).getB();
+		}
+		stringStarts = new String[stringList.size()];
+		stringEnds = new String[stringList.size()];
+		stringEscapes = new char[stringList.size()];
+		for (int i = 0; i < stringList.size(); i++) {
+			stringStarts[i] = stringList.get(i).getA();
+			stringEnds[i] = stringList.get(i).getB();
+			stringEscapes[i] = stringList.get(i).getC();
+		}
+		operators = operatorList.toArray(new String[0]);
+
+		/* The escape code declared first wins */
+		escapeReplacements = new String[scanner.escapeCodes.size()];
+		for (int i = 0; i < escapeReplacements.length; i++) {
+			escapeReplacements[i] = scanner.escapeCodes.get(i).getB();
+			setEscape(scanner.escapeCodes.get(i).getA(), i+1);
+		}
+		charEscapeDigits = new int[scanner.charEscapeCodes.size()];
+		charEscapeRadixes = new int[charEscapeDigits.length];
+		for (int i = 0; i < charEscapeDigits.length; i++) {
+			charEscapeDigits[i] = scanner.charEscapeCodes.get(i).getB();
+			charEscapeRadixes[i] = scanner.charEscapeCodes.get(i).getC();
+			setEscape(scanner.charEscapeCodes.get(i).getA(), -i-1);
+		}
+		lazyStrings = scanner.lazyStrings;
+
+		/* Interns the texts of the kinds */
+
+		kindTexts = new String[Token.FIRST_KIND + scanner.kinds.size()];
+		for (char chr = 0; chr < Token.FIRST_KIND; chr++)
+			if (TokenScanner.isPunctuationKind(chr)) kindTexts[chr] = String.valueOf(chr);
+		for (int i = 0; i < scanner.kinds.size(); i++)
+			kindTexts[Token.FIRST_KIND + i] = scanner.kinds.get(i);
+		int capacity = 16;
+		while (capacity < kindTexts.length * 2) capacity *= 2;
+		kindTable = new String[capacity];
+		kindTableKinds = new int[capacity];
+		for (int kind = 0; kind < kindTexts.length; kind++) {
+			String text = kindTexts[kind];
+			if (text == null) continue;
+			int slot = hash(text, 0, text.length()) & (capacity - 1);
+			while (kindTable[slot] != null) slot = (slot + 1) & (capacity - 1);
+			kindTable[slot] = text;
+			kindTableKinds[slot] = kind;
+		}
+		operatorKinds = kindsOf(operators);
+		stringStartKinds = kindsOf(stringStarts);
+		stringEndKinds = kindsOf(stringEnds);
+		eofKind = scanner.EOF == null || scanner.EOF.isEmpty() ? Token.OTHER : kindOf(scanner.EOF, 0, scanner.EOF.length());
+
+		int longest = 2;
+		for (String[] texts : new String[][] { ignoreSeqs, commentStarts, commentEnds, stringStarts, operators })
+			for (String text : texts) longest = Math.max(longest, text.length());
+		/* An escaped end sequence and a character escape code are read after the escape character */
+		for (String text : stringEnds) longest = Math.max(longest, text.length() + 1);
+		for (int digits : charEscapeDigits) longest = Math.max(longest, digits + 2);
+		lookahead = scanner.patterns.isEmpty() ? longest : Integer.MAX_VALUE;
+
+		ignoreWhitespace = scanner.ignoreWhitespace;
+		dontIgnore = scanner.dontIgnore.toCharArray();
+		Arrays.sort(dontIgnore);
+		allPunctuation = scanner.allPunctuation;
+		EOF = scanner.EOF;
+
+		/* Builds the trie of all literals */
+
+		List<HashMap<Character, Integer>> trie = new ArrayList<>();
+		List<int[]> trieAccepts = new ArrayList<>();
+		trie.add(new HashMap<>());
+		trieAccepts.add(newAccepts());
+		TreeSet<Character> alphabet = new TreeSet<>();
+
+		String[][] literals = { ignoreSeqs, commentStarts, stringStarts, operators };
+		for (int category = 0; category < CATEGORIES; category++) {
+			for (int rule = 0; rule < literals[category].length; rule++) {
+				String literal = literals[category][rule];
+				int state = 0;
+				for (char chr : literal.toCharArray()) {
+					alphabet.add(chr);
+					Integer next = trie.get(state).get(chr);
+					if (next == null) {
+						next = trie.size();
+						trie.add(new HashMap<>());
+						trieAccepts.add(newAccepts());
+						trie.get(state).put(chr, next);
+					}
+					state = next;
+				}
+				/* The first rule declared wins if the same literal is declared twice */
+				if (trieAccepts.get(state)[category] < 0)
+					trieAccepts.get(state)[category] = rule;
+			}
+		}
+
+		/* Assigns a class to each character of the alphabet */
+
+		classCount = alphabet.size() + 1;
+		short cls = 1;
+		for (char chr : alphabet) {
+			short[] page = classPages[chr >>> 8];
+			if (page == null) page = classPages[chr >>> 8] = new short[256];
+			page[chr & 0xff] = cls++;
+		}
+
+		/* Flattens the trie to a transition table */
+
+		transitions = new int[trie.size() * classCount];
+		Arrays.fill(transitions, -1);
+		accepts = new int[trie.size() * CATEGORIES];
+		accepting = new boolean[trie.size()];
+		for (int state = 0; state < trie.size(); state++) {
+			for (Map.Entry<Character, Integer> e : trie.get(state).entrySet())
+				transitions[state * classCount + classOf(e.getKey())] = e.getValue();
+			int[] a = trieAccepts.get(state);
+			System.arraycopy(a, 0, accepts, state * CATEGORIES, CATEGORIES);
+			for (int category = 0; category < CATEGORIES; category++)
+				if (a[category] >= 0) accepting[state] = true;
+		}
+		matcher = scanner.generateMatcher ? MatcherGenerator.generate(trie, trieAccepts) : null;
+
+		for (char chr = 0; chr < 256; chr++) {
+			ignoredLatin[chr] = computeIgnored(chr);
+			plain[chr] = !ignoredLatin[chr]
+					&& transitions[latinClasses[chr]] < 0
+					&& !patterns.canStart(chr)
+					&& !isPunctuation(chr);
+		}
+	}
+
+	/**
+	 * Tests if the literal rules are matched by a class generated by {@link MatcherGenerator}
+	 */
+	boolean hasGeneratedMatcher() {
+		return matcher != null;
+	}
+
+	private void setEscape(char chr, int escape) {
+		int[] page = escapePages[chr >>> 8];
+		if (page == null) page = escapePages[chr >>> 8] = new int[256];
+		if (page[chr & 0xff] == 0) page[chr & 0xff] = escape;
+	}
+
+	private int escapeOf(char chr) {
+		int[] page = escapePages[chr >>> 8];
+		return page == null ? 0 : page[chr & 0xff];
+	}
+
+	private static int hash(CharSequence text, int start, int end) {
+		int h = 0;
+		for (int i = start; i < end; i++)
+			h = 31 * h + text.charAt(i);
+		return h ^ (h >>> 16);
+	}
+
+	/**
+	 * Returns the kind of the text between start and end
+	 */
+	private int kindOf(CharSequence text, int start, int end) {
+		if (end - start == 1) {
+			char chr = text.charAt(start);
+			if (chr < Token.FIRST_KIND && kindTexts[chr] != null) return chr;
+		}
+		int mask = kindTable.length - 1;
+		for (int slot = hash(text, start, end) & mask; kindTable[slot] != null; slot = (slot + 1) & mask) {
+			String candidate = kindTable[slot];
+			if (candidate.length() != end - start) continue;
+			int i = 0;
+			while (i < candidate.length() && candidate.charAt(i) == text.charAt(start + i)) i++;
+			if (i == candidate.length()) return kindTableKinds[slot];
+		}
+		return Token.OTHER;
+	}
+
+	private int[] kindsOf(String[] texts) {
+		int[] kinds = new int[texts.length];
+		for (int i = 0; i < texts.length; i++)
+			kinds[i] = kindOf(texts[i], 0, texts[i].length());
+		return kinds;
+	}
+
+	private static int[] newAccepts() {
+		int[] a = new int[CATEGORIES];
+		Arrays.fill(a, -1);
+		return a;
+	}
+
+	private int classOf(char chr) {
+		if (chr < 256) return latinClasses[chr];
+		short[] page = classPages[chr >>> 8];
+		return page == null ? 0 : page[chr & 0xff];
+	}
+
+	private boolean computeIgnored(char chr) {
+		return ignoreWhitespace
+				&& Character.isWhitespace(chr)
+				&& Arrays.binarySearch(dontIgnore, chr) < 0;
+	}
+
+	private boolean isIgnored(char chr) {
+		return chr < 256 ? ignoredLatin[chr] : computeIgnored(chr);
+	}
+
+	/* Surrogates are never plain so that pairs can be classified by their code points */
+	private boolean isPlain(char chr) {
+		if (chr < 256) return plain[chr];
+		return classOf(chr) == 0
+				&& !patterns.canStart(chr)
+				&& !Character.isSurrogate(chr)
+				&& (Character.isLetterOrDigit(chr) || !allPunctuation && !computeIgnored(chr));
+	}
+
+	private boolean isPunctuation(int codePoint) {
+		return allPunctuation && !Character.isLetter(codePoint) && !Character.isDigit(codePoint);
+	}
+
+	/**
+	 * Walks the automaton starting from position i and stores the longest match
+	 * of each category to the match array as (rule, length) pairs, or -1 if the category did not match
+	 */
+	private void walk(ScanInput in, int i, int[] match) {
+		if (matcher != null) {
+			matcher.walk(in, i, match);
+			return;
+		}
+		Arrays.fill(match, -1);
+		int state = 0;
+		for (int j = i; in.has(j); j++) {
+			int cls = classOf(in.charAt(j));
+			if (cls == 0) break;
+			state = transitions[state * classCount + cls];
+			if (state < 0) break;
+			if (accepting[state]) {
+				int base = state * CATEGORIES;
+				for (int category = 0; category < CATEGORIES; category++) {
+					int rule = accepts[base + category];
+					if (rule >= 0) {
+						match[2 * category] = rule;
+						match[2 * category + 1] = j - i + 1;
+					}
+				}
+			}
+		}
+	}
+
+	private int flush(TokenStorage out, ScanInput in, int start, int end) {
+		if (start >= 0 && start < end) out.addSpan(in, start, end, kindOf(in, start, end));
+		return -1;
+	}
+
+	private ParsingException unexpectedEOF(String message, ScanInput in, TokenStorage out, int pos) {
+		return new ParsingException(message, out.newToken(in, pos, EOF, eofKind));
+	}
+
+	private static final int INVALID_ESCAPE = -1;
+
+	/**
+	 * Reads an escape code of a string literal. The escape character is at position i,
+	 * and there is at least one character after it.
+	 *
+	 * @param in The input
+	 * @param i The position of the escape character
+	 * @param rule The string rule
+	 * @param str The builder to which the decoded text is appended, or null
+	 * @return The position of the last character of the escape code, INVALID_ESCAPE if the escape code
+	 * is not valid, or -2-pos if the input ends at pos in the middle of the escape code
+	 */
+	private int escape(ScanInput in, int i, int rule, StringBuilder str) {
+		String endSeq = stringEnds[rule];
+		if (in.startsWith(endSeq, i+1)) {
+			if (str != null) str.append(endSeq);
+			return i + endSeq.length();
+		}
+		int escape = escapeOf(in.charAt(i+1));
+		if (escape > 0) {
+			if (str != null) str.append(escapeReplacements[escape-1]);
+			return i+1;
+		}
+		if (escape < 0) {
+			int digits = charEscapeDigits[-escape-1], radix = charEscapeRadixes[-escape-1];
+			int code = 0;
+			for (int k = 0; k < digits; k++) {
+				if (!in.has(i+2+k)) return -2 - (i+2+k);
+				int digit = Character.digit(in.charAt(i+2+k), radix);
+				if (digit < 0) return INVALID_ESCAPE;
+				code = code * radix + digit;
+				if (code > Character.MAX_CODE_POINT) return INVALID_ESCAPE;
+			}
+			if (str != null) str.appendCodePoint(code);
+			return i+1+digits;
+		}
+		return INVALID_ESCAPE;
+	}
+
+	/**
+	 * Decodes the escape codes of the contents of a string literal that has already been read
+	 *
+	 * @param in The input
+	 * @param start The start of the contents
+	 * @param end The end of the contents
+	 * @param rule The string rule
+	 * @return The decoded contents
+	 */
+	String decode(ScanInput in, int start, int end, int rule) {
+		char escapeChar = stringEscapes[rule];
+		StringBuilder str = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			if (in.charAt(i) == escapeChar && i+1 < end) i = escape(in, i, rule, str);
+			else str.append(in.charAt(i));
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Reads tokens and appends the EOF text if there is one
+	 *
+	 * @param in The input
+	 * @param out The storage to which the tokens are added
+	 */
+	void tokenize(ScanInput in, TokenStorage out) {
+		scan(in, out, 0);
+		appendEOF(in, out);
+	}
+
+	/**
+	 * Appends the EOF text if there is one
+	 *
+	 * @param in The input, read to the end
+	 * @param out The storage to which the token is added
+	 */
+	void appendEOF(ScanInput in, TokenStorage out) {
+		if (EOF != null && !EOF.isEmpty())
+			out.addText(in, in.length(), EOF, eofKind);
+	}
+
+	/**
+	 * Reads tokens
+	 *
+	 * @param in The input
+	 * @param out The storage to which the tokens are added
+	 * @param from The position where the scan starts, between two tokens
+	 * @return <code>false</code> if the input ended in the middle of a token, otherwise <code>true</code>
+	 */
+	boolean scan(ScanInput in, TokenStorage out, int from) {
+		/* The start of the current token, or -1 if there is none */
+		int start = -1;
+		int[] match = new int[2 * CATEGORIES];
+		Matcher[] matchers = patterns.newMatchers();
+
+		int i = from-1;
+		outer: while (in.hasNext(i+1)) {
+			i++;
+			if (start < 0) {
+				if (out.stopped()) {
+					out.stoppedAt(i);
+					return true;
+				}
+				in.release(i);
+			}
+
+			char chr = in.charAt(i);
+
+			/* Runs of plain and ignored characters are skipped at once */
+
+			if (isPlain(chr)) {
+				if (start < 0) start = i;
+				i = in.skip(i+1, plain, false)-1;
+				continue;
+			}
+
+			if (isIgnored(chr)) {
+				start = flush(out, in, start, i);
+				i = in.skip(i+1, ignoredLatin, true)-1;
+				continue;
+			}
+
+			if (transitions[classOf(chr)] >= 0) walk(in, i, match);
+			else Arrays.fill(match, -1);
+
+			int rule;
+
+			if ((rule = match[2 * IGNORE]) >= 0) {
+				start = flush(out, in, start, i);
+				i += match[2 * IGNORE + 1]-1;
+				continue;
+			}
+
+			if ((rule = match[2 * COMMENT]) >= 0) {
+				start = flush(out, in, start, i);
+				String endSeq = commentEnds[rule];
+				int end = in.indexOf(endSeq, i + commentStarts[rule].length());
+				if (end < 0)
+					throw unexpectedEOF("Unexpected EOF in the middle of a comment", in, out, in.length());
+				i = end + endSeq.length()-1;
+				continue;
+			}
+
+			int patternEnd = patterns.match(in, i, matchers);
+			if (patternEnd >= 0) {
+				start = flush(out, in, start, i);
+				out.addSpan(in, i, patternEnd, kindOf(in, i, patternEnd));
+				i = patternEnd-1;
+				continue;
+			}
+
+			if ((rule = match[2 * STRING]) >= 0) {
+				start = flush(out, in, start, i);
+				String startSeq = stringStarts[rule];
+				String endSeq = stringEnds[rule];
+				char escapeChar = stringEscapes[rule];
+
+				out.addSpan(in, i, i + startSeq.length(), stringStartKinds[rule]);
+
+				i += startSeq.length()-1;
+				int contentStart = i+1;
+				boolean escaped = false;
+				/* An input that drops released characters copies the contents as they are read, so that they can be released */
+				boolean releases = in.releases();
+				/* The decoded contents, or null if the input keeps them and there has been no escape codes or they are decoded lazily */
+				StringBuilder str = releases ? new StringBuilder() : null;
+				if (releases) in.pin(contentStart);
+
+				while (true) {
+					/* Skips to the next escape character or the next possible end of the string */
+					int next;
+					if (endSeq.isEmpty()) next = i+1;
+					else if (escapeChar != '\0') next = in.indexOfAny(escapeChar, endSeq.charAt(0), i+1);
+					else next = in.indexOf(endSeq.charAt(0), i+1);
+					if (next < 0)
+						throw unexpectedEOF("Unexpected EOF in the middle of a string constant", in, out, in.length());
+					if (str != null) str.append(in, i+1, next);
+					if (releases) in.release(next);
+					i = next;
+
+					if (escapeChar != '\0' && in.has(i) && in.charAt(i) == escapeChar && in.has(i+1)) {
+						if (!escaped) {
+							escaped = true;
+							if (!lazyStrings && str == null) str = new StringBuilder().append(in, contentStart, i);
+						}
+						int last = escape(in, i, rule, str);
+						if (last == INVALID_ESCAPE) {
+							String text = str != null ? str.toString() : decode(in, contentStart, i, rule);
+							throw new ParsingException("Invalid escape sequence '"
+									+ escapeChar + in.charAt(i+1) + "'",
+									out.newToken(in, i, startSeq+text, Token.STRING));
+						}
+						if (last < 0)
+							throw unexpectedEOF("Unexpected EOF in the middle of a string constant", in, out, -2 - last);
+						i = last;
+						continue;
+					}
+					if (in.startsWith(endSeq, i)) {
+						if (str != null) out.addText(in, contentStart, str.toString(), Token.STRING);
+						else if (!escaped) out.addSpan(in, contentStart, i, Token.STRING);
+						else out.addEscaped(in, contentStart, i, this, rule);
+						out.addSpan(in, i, i + endSeq.length(), stringEndKinds[rule]);
+						i += endSeq.length()-1;
+						continue outer;
+					} else if (in.has(i)) {
+						if (str != null) str.append(in.charAt(i));
+					} else {
+						throw unexpectedEOF("Unexpected EOF in the middle of a string constant", in, out, i);
+					}
+				}
+			}
+
+			if ((rule = match[2 * OPERATOR]) >= 0) {
+				start = flush(out, in, start, i);
+				out.addSpan(in, i, i + match[2 * OPERATOR + 1], operatorKinds[rule]);
+				i += match[2 * OPERATOR + 1]-1;
+				continue;
+			}
+
+			/* A surrogate pair is one character */
+			int length = Character.isHighSurrogate(chr) && in.has(i+1) && Character.isLowSurrogate(in.charAt(i+1)) ? 2 : 1;
+			int codePoint = length == 2 ? Character.toCodePoint(chr, in.charAt(i+1)) : chr;
+
+			if (isPunctuation(codePoint)) {
+				start = flush(out, in, start, i);
+				out.addSpan(in, i, i+length, kindOf(in, i, i+length));
+				i += length-1;
+				continue;
+			}
+
+			if (start < 0) start = i;
+			i += length-1;
+		}
+
+		boolean between = start < 0;
+		flush(out, in, start, i+1);
+		return between;
+	}
+
+}
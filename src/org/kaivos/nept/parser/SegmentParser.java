@@ -0,0 +1,198 @@
+package org.kaivos.nept.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Parses a sequence of independent segments, like the top-level declarations of a file, in parallel.
+ *
+ * The boundaries of the segments are found first by reading the tokens once: a segment ends after a
+ * delimiter token or after a block closed by its closing token, outside any brackets. The segments are
+ * then parsed on the common fork-join pool, each with a cursor of its own that sees only the tokens of
+ * the segment, and the results are returned in the order of the segments. Every segment must be parsed
+ * to its end. If some segments fail, the error of the first one is thrown.
+ *
+ * <pre>
+ * List&lt;Decl&gt; decls = SegmentParser.of(this::parseDeclaration)
+ *         .delimiter(";")
+ *         .block("{", "}")
+ *         .brackets("(", ")")
+ *         .until("&lt;EOF&gt;")
+ *         .parse(tl);
+ * </pre>
+ *
+ * @author Iikka Hauhio
+ *
+ * @param <E> The type of the results of the segments
+ */
+public final class SegmentParser<E> implements Parser<List<E>> {
+
+	/* Segments are parsed in groups of at least this many tokens */
+	private static final int MIN_TASK = 4096;
+
+	private final Parser<E> parser;
+	private final List<String> delimiters = new ArrayList<>();
+	private final List<String> opens = new ArrayList<>(), closes = new ArrayList<>();
+	/* Tells if a closing bracket at depth 0 ends the segment */
+	private final List<Boolean> blocks = new ArrayList<>();
+	private String end = null;
+
+	private SegmentParser(Parser<E> parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * Creates a segment parser
+	 *
+	 * @param parser The parser of one segment
+	 * @param <E> The type of the results of the segments
+	 * @return The segment parser
+	 */
+	public static <E> SegmentParser<E> of(Parser<E> parser) {
+		return new SegmentParser<>(parser);
+	}
+
+	/**
+	 * Declares a token that ends a segment when it is outside brackets. The token belongs to the segment it ends.
+	 *
+	 * @param delimiter The text of the token
+	 * @return self
+	 */
+	public SegmentParser<E> delimiter(String delimiter) {
+		delimiters.add(delimiter);
+		return this;
+	}
+
+	/**
+	 * Declares a pair of brackets that ends a segment when the outermost pair is closed
+	 *
+	 * @param open The opening bracket
+	 * @param close The closing bracket
+	 * @return self
+	 */
+	public SegmentParser<E> block(String open, String close) {
+		return addBrackets(open, close, true);
+	}
+
+	/**
+	 * Declares a pair of brackets. Delimiters and blocks inside brackets do not end segments.
+	 *
+	 * @param open The opening bracket
+	 * @param close The closing bracket
+	 * @return self
+	 */
+	public SegmentParser<E> brackets(String open, String close) {
+		return addBrackets(open, close, false);
+	}
+
+	private SegmentParser<E> addBrackets(String open, String close, boolean block) {
+		opens.add(open);
+		closes.add(close);
+		blocks.add(block);
+		return this;
+	}
+
+	/**
+	 * Declares a token that ends the last segment, like the text appended on EOF.
+	 * The token is not parsed, and the cursor is left before it. By default all tokens are parsed.
+	 *
+	 * @param end The text of the token
+	 * @return self
+	 */
+	public SegmentParser<E> until(String end) {
+		this.end = end;
+		return this;
+	}
+
+	/**
+	 * Parses the segments from the cursor to the end of the list or the end token
+	 *
+	 * @param tl The token list, which must have been read completely
+	 * @return The results of the segments
+	 * @throws ParsingException on syntax error
+	 */
+	@Override
+	public List<E> parse(TokenList tl) throws ParsingException {
+		TokenStorage tokens = tl.storage();
+		if (tokens instanceof TokenStorage.StreamStorage)
+			throw new UnsupportedOperationException("The tokens are read on demand");
+
+		int from = tl.mark();
+		int[] bounds = boundaries(tokens, from);
+		int segments = bounds.length - 1;
+		int last = bounds[segments];
+
+		List<E> results = new ArrayList<>(segments);
+		for (int i = 0; i < segments; i++) results.add(null);
+		int size = Math.max(MIN_TASK, (last - from) / (ForkJoinPool.getCommonPoolParallelism() * 4) + 1);
+		if (last - from < 2 * size) {
+			parseSegments(tl, bounds, 0, segments, results);
+		} else {
+			List<ForkJoinTask<?>> tasks = new ArrayList<>();
+			int first = 0;
+			for (int i = 1; i <= segments; i++) {
+				if (i == segments || bounds[i] - bounds[first] >= size) {
+					int a = first, b = i;
+					tasks.add(ForkJoinPool.commonPool().submit(() -> parseSegments(tl, bounds, a, b, results)));
+					first = i;
+				}
+			}
+			/* The tasks are joined in order, so the first error is thrown */
+			for (ForkJoinTask<?> task : tasks) task.join();
+		}
+		tl.rewind(last);
+		return results;
+	}
+
+	/* Returns the start of each segment, followed by the end of the last segment */
+	private int[] boundaries(TokenStorage tokens, int from) {
+		int[] bounds = new int[16];
+		int count = 0;
+		bounds[count++] = from;
+		/* The stack of the open brackets */
+		int[] stack = new int[16];
+		int depth = 0;
+		int i = from;
+		for (; tokens.has(i); i++) {
+			if (tokens.kind(i) == Token.STRING) continue;
+			if (depth == 0 && end != null && tokens.textEquals(i, end)) break;
+			boolean boundary = false;
+			int bracket = indexOf(opens, tokens, i);
+			if (bracket >= 0) {
+				if (depth == stack.length) stack = Arrays.copyOf(stack, depth * 2);
+				stack[depth++] = bracket;
+			} else if (depth > 0 && tokens.textEquals(i, closes.get(stack[depth-1]))) {
+				depth--;
+				boundary = depth == 0 && blocks.get(stack[0]);
+			} else if (depth == 0) {
+				boundary = indexOf(delimiters, tokens, i) >= 0;
+			}
+			if (boundary) {
+				if (count == bounds.length) bounds = Arrays.copyOf(bounds, count * 2);
+				bounds[count++] = i + 1;
+			}
+		}
+		/* The tokens after the last boundary form the last segment */
+		if (i > bounds[count-1]) {
+			if (count == bounds.length) bounds = Arrays.copyOf(bounds, count * 2);
+			bounds[count++] = i;
+		}
+		return Arrays.copyOf(bounds, count);
+	}
+
+	private static int indexOf(List<String> texts, TokenStorage tokens, int index) {
+		for (int k = 0; k < texts.size(); k++)
+			if (tokens.textEquals(index, texts.get(k))) return k;
+		return -1;
+	}
+
+	private void parseSegments(TokenList tl, int[] bounds, int first, int last, List<E> results) {
+		for (int k = first; k < last; k++) {
+			TokenList segment = tl.view(bounds[k], bounds[k+1], tl.storage().get(bounds[k+1] - 1), "segment");
+			results.set(k, TokenList.parseAll(parser, segment));
+		}
+	}
+}
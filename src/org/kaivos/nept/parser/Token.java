@@ -8,14 +8,38 @@ package org.kaivos.nept.parser;
  */
 public class Token {
 	
+	/**
+	 * The kind of tokens whose text has no kind of its own, like identifiers and literals
+	 */
+	public static final int OTHER = 0;
+	
+	/**
+	 * The kind of the contents of string literals
+	 */
+	public static final int STRING = 1;
+	
+	/**
+	 * The kind of the first text registered to a scanner. Single ASCII punctuation
+	 * characters are their own kinds, so that parsers can switch on character literals.
+	 */
+	public static final int FIRST_KIND = 128;
+	
 	private String token;
 	private String file;
 	private int line;
+	private int column;
+	private int kind;
 	
 	Token(String token, String file, int line) {
+		this(token, file, line, 0, OTHER);
+	}
+	
+	Token(String token, String file, int line, int column, int kind) {
 		this.token = token;
 		this.file = file;
 		this.line = line;
+		this.column = column;
+		this.kind = kind;
 	}
 	
 	/**
@@ -45,9 +69,28 @@ public class Token {
 		return line;
 	}
 	
+	/**
+	 * Location in the line, counting from 1
+	 * 
+	 * @return An integer, or 0 if unknown
+	 */
+	public int getColumn() {
+		return column;
+	}
+	
+	/**
+	 * The kind of the token, assigned by the scanner
+	 * 
+	 * @return An integer
+	 * @see TokenScanner#kindOf(String)
+	 */
+	public int getKind() {
+		return kind;
+	}
+	
 	@Override
 	public String toString() {
-		return token;
+		return getToken();
 	}
 	
 }
@@ -2,19 +2,24 @@ package org.kaivos.nept.parser;
 
 import java.util.Arrays;
 import java.util.List;
-import java.util.Collections;
+import java.util.Optional;
 import java.util.stream.Collectors;
 
 /**
- * A wrapper for a <code>List&lt;Token&gt;</code>
+ * A list of tokens with a cursor
  * 
  * @author Iikka Hauhio
  *
  */
 public class TokenList {
 
-	private List<Token> tokens;
+	private TokenStorage tokens;
 	private int index;
+	/* The number of nested tryParse calls, during which errors are created without stack traces */
+	private int speculation = 0;
+	/* The bracket index, and the index of the first token of this list in the indexed tokens */
+	private BracketIndex brackets;
+	private int bracketBase;
 	
 	/**
 	 * The default constructor
@@ -22,10 +27,18 @@ public class TokenList {
 	 * @param tokens The list of tokens
 	 */
 	public TokenList(List<Token> tokens) {
+		this(new TokenStorage.ListStorage(tokens));
+	}
+	
+	TokenList(TokenStorage tokens) {
 		this.tokens = tokens;
 		this.index = 0;
 	}
 
+	TokenStorage storage() {
+		return tokens;
+	}
+
 	/**
 	 * Returns the next token from the list and increases the index counter
 	 * 
@@ -33,8 +46,13 @@ public class TokenList {
 	 */
 	public void shift() {
 		index++;
-		if (index >= tokens.size())
-			throw new IndexOutOfBoundsException();
+		if (!tokens.has(index))
+			throw tokens.noToken(index);
+	}
+	
+	/* Moves the cursor over the next token without creating a token object */
+	void advance() {
+		index++;
 	}
 	
 	/**
@@ -54,7 +72,7 @@ public class TokenList {
 	 * @throws IndexOutOfBoundsException If no tokens left
 	 */
 	public String nextString() {
-		return tokens.get(index++).getToken();
+		return tokens.getString(index++);
 	}
 	
 	/**
@@ -85,7 +103,7 @@ public class TokenList {
 	 * @throws IndexOutOfBoundsException If no tokens left
 	 */
 	public String seekString() {
-		return tokens.get(index).getToken();
+		return tokens.getString(index);
 	}
 	
 	/**
@@ -96,7 +114,28 @@ public class TokenList {
 	 * @throws IndexOutOfBoundsException If no tokens left
 	 */
 	public String seekString(int n) {
-		return tokens.get(index+n).getToken();
+		return tokens.getString(index+n);
+	}
+	
+	/**
+	 * Lookahead, returns the kind of the next token, equivalent to <code>seekKind(0)</code>
+	 * 
+	 * @return The kind of the next token
+	 * @throws IndexOutOfBoundsException If no tokens left
+	 */
+	public int seekKind() {
+		return tokens.kind(index);
+	}
+	
+	/**
+	 * Lookahead, returns the kind of a token
+	 * 
+	 * @param n skips n number of elements
+	 * @return The kind of the token
+	 * @throws IndexOutOfBoundsException If no tokens left
+	 */
+	public int seekKind(int n) {
+		return tokens.kind(index+n);
 	}
 	
 	/**
@@ -105,7 +144,7 @@ public class TokenList {
 	 * @return <code>true</code> if tokens left, otherwise <code>false</code>
 	 */
 	public boolean hasNext() {
-		return index < tokens.size();
+		return tokens.has(index);
 	}
 	
 	/**
@@ -115,7 +154,37 @@ public class TokenList {
 	 * @return <code>true</code> if tokens left, otherwise <code>false</code>
 	 */
 	public boolean has(int number) {
-		return index + number-1 < tokens.size();
+		return tokens.has(index + number-1);
+	}
+	
+	/**
+	 * Compares the next token to a keyword
+	 * 
+	 * @param keyword The keyword
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean isNext(String keyword) {
+		return tokens.textEquals(index, keyword);
+	}
+	
+	/**
+	 * Compares the kind of the next token to a kind
+	 * 
+	 * @param kind The kind
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean isNext(int kind) {
+		return hasNext() && tokens.kind(index) == kind;
+	}
+	
+	/**
+	 * Tests if the kind of the next token is in a set
+	 * 
+	 * @param set The set of kinds
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean isNext(TokenSet set) {
+		return hasNext() && set.contains(tokens.kind(index));
 	}
 	
 	/**
@@ -125,7 +194,39 @@ public class TokenList {
 	 * @return <code>true</code> or <code>false</code>
 	 */
 	public boolean isNext(String... keyword) {
-		return hasNext() ? Arrays.asList(keyword).contains(seek().getToken()) : false;
+		for (String k : keyword)
+			if (tokens.textEquals(index, k)) return true;
+		return false;
+	}
+	
+	/**
+	 * Accepts a keyword
+	 * 
+	 * @param keyword The acceptable keyword
+	 * @return The accepted keyword
+	 * @throws ParsingException if unexpected token was encountered
+	 * @throws IndexOutOfBoundsException If no tokens left
+	 */
+	public Token accept(String keyword) throws ParsingException {
+		Token next = next();
+		if (!tokens.textEquals(index-1, keyword))
+			throw error(new String[] { keyword }, next);
+		return next;
+	}
+	
+	/**
+	 * Accepts a token whose kind is in a set
+	 * 
+	 * @param set The set of acceptable kinds
+	 * @return The accepted token
+	 * @throws ParsingException if unexpected token was encountered
+	 * @throws IndexOutOfBoundsException If no tokens left
+	 */
+	public Token accept(TokenSet set) throws ParsingException {
+		Token next = next();
+		if (!set.contains(tokens.kind(index-1)))
+			throw error(set.getTexts(), next);
+		return next;
 	}
 	
 	/**
@@ -138,11 +239,35 @@ public class TokenList {
 	 */
 	public Token accept(String... keyword) throws ParsingException {
 		Token next = next();
-		if (!Arrays.asList(keyword).contains(next.getToken()))
-			throw new ParsingException(expected(keyword), next);
-		return next;
+		for (String k : keyword)
+			if (tokens.textEquals(index-1, k)) return next;
+		throw error(keyword, next);
 	}
 
+	/**
+	 * Compares the next token to a keyword. If it matches, it will be accepted.
+	 * 
+	 * @param keyword The keyword
+	 * @return <code>true</code> if the keyword was accepted, otherwise <code>false</code>
+	 */
+	public boolean acceptIfNext(String keyword) {
+		boolean isItNext = isNext(keyword);
+		if (isItNext) shift();
+		return isItNext;
+	}
+	
+	/**
+	 * Tests if the kind of the next token is in a set. If it is, the token will be accepted.
+	 * 
+	 * @param set The set of kinds
+	 * @return <code>true</code> if a token was accepted, otherwise <code>false</code>
+	 */
+	public boolean acceptIfNext(TokenSet set) {
+		boolean isItNext = isNext(set);
+		if (isItNext) shift();
+		return isItNext;
+	}
+	
 	/**
 	 * Compares the next token to some keywords. If one of them
 	 * matches, it will be accepted.
@@ -179,6 +304,186 @@ public class TokenList {
 		index = 0;
 	}
 	
+	/**
+	 * Returns the position of the cursor, which can be restored with {@link #rewind(int)}
+	 * 
+	 * @return The mark
+	 */
+	public int mark() {
+		return index;
+	}
+	
+	/**
+	 * Moves the cursor back (or forward) to a mark
+	 * 
+	 * @param mark The mark returned by {@link #mark()}
+	 * @throws IndexOutOfBoundsException if the mark is not a position in this list
+	 */
+	public void rewind(int mark) {
+		if (mark < 0 || mark > tokens.size())
+			throw new IndexOutOfBoundsException("Mark: " + mark + ", Size: " + tokens.size());
+		index = mark;
+	}
+	
+	/**
+	 * Creates a new cursor over the same tokens, starting from the position of this cursor.
+	 * Moving the new cursor does not move this one. The tokens are not copied.
+	 * 
+	 * @return The new cursor
+	 */
+	public TokenList fork() {
+		TokenList fork = new TokenList(tokens);
+		fork.index = index;
+		fork.speculation = speculation;
+		fork.brackets = brackets;
+		fork.bracketBase = bracketBase;
+		return fork;
+	}
+	
+	/**
+	 * Moves the cursor to the position of a cursor created with {@link #fork()}
+	 * 
+	 * @param fork The forked cursor
+	 * @throws IllegalArgumentException if the cursor is not over the same tokens
+	 */
+	public void join(TokenList fork) {
+		if (fork.tokens != tokens)
+			throw new IllegalArgumentException("The cursor is not a fork of this list");
+		index = fork.index;
+	}
+	
+	/**
+	 * Finds the matching brackets of the tokens in one pass, so that bracketed regions can be skipped
+	 * with {@link #skipBalanced()} and {@link #deferBalanced(Parser)}. Brackets inside string literals are
+	 * ignored. A closing bracket matches the innermost open bracket only if it is of the same pair.
+	 * Tokens appended to the list later are not indexed.
+	 * 
+	 * @param pairs The opening and closing brackets, like <code>"(", ")", "{", "}"</code>
+	 * @return self
+	 */
+	public TokenList indexBrackets(String... pairs) {
+		if (tokens instanceof TokenStorage.StreamStorage)
+			throw new UnsupportedOperationException("The tokens are read on demand");
+		brackets = new BracketIndex(tokens, pairs);
+		bracketBase = 0;
+		return this;
+	}
+	
+	/* Returns the index of the bracket closing the next token */
+	private int closingBracket() {
+		if (brackets == null)
+			throw new IllegalStateException("The brackets have not been indexed");
+		if (!brackets.isOpening(bracketBase + index))
+			throw error(brackets.opens, next());
+		int close = brackets.match(bracketBase + index) - bracketBase;
+		if (close < 0 || close >= tokens.size())
+			throw error("Unclosed bracket", seek());
+		return close;
+	}
+	
+	/**
+	 * Skips an opening bracket, the tokens inside it and the matching closing bracket
+	 * without looking at the tokens. Requires {@link #indexBrackets(String...)}.
+	 * 
+	 * @return The closing bracket
+	 * @throws ParsingException if the next token is not an opening bracket or it is not closed
+	 * @throws IllegalStateException if the brackets have not been indexed
+	 */
+	public Token skipBalanced() throws ParsingException {
+		index = closingBracket() + 1;
+		return tokens.get(index - 1);
+	}
+	
+	/**
+	 * Skips a bracketed region like {@link #skipBalanced()}, and returns a handle that parses the
+	 * tokens inside the brackets when its value is requested for the first time
+	 * 
+	 * @param parser The parser of the tokens inside the brackets, which must parse all of them
+	 * @param <E> The type of the result
+	 * @return The handle
+	 * @throws ParsingException if the next token is not an opening bracket or it is not closed
+	 * @throws IllegalStateException if the brackets have not been indexed
+	 */
+	public <E> Deferred<E> deferBalanced(Parser<E> parser) throws ParsingException {
+		int open = index;
+		int close = closingBracket();
+		index = close + 1;
+		return new Deferred<>(parser, view(open + 1, close, tokens.get(close), "block"));
+	}
+	
+	/* Returns a new list of the tokens from index from to index to, sharing the bracket index.
+	   Reading past the end of the list throws "Unexpected end of <what>" at the end token. */
+	TokenList view(int from, int to, Token end, String what) {
+		TokenList view = new TokenList(new TokenStorage.View(tokens, from, to, end, what));
+		view.speculation = speculation;
+		view.brackets = brackets;
+		view.bracketBase = bracketBase + from;
+		return view;
+	}
+	
+	/**
+	 * Parses the tokens of a list from the cursor to the end
+	 * 
+	 * @param parser The parser
+	 * @param tl The list
+	 * @return The result
+	 * @throws ParsingException if the parser fails or does not parse all tokens
+	 */
+	static <E> E parseAll(Parser<E> parser, TokenList tl) {
+		E result = parser.parse(tl);
+		if (tl.hasNext())
+			throw new ParsingException("Unexpected token", tl.seek());
+		return result;
+	}
+	
+	/**
+	 * Tries to parse something at the cursor. If the parser throws a {@link ParsingException},
+	 * the cursor is moved back to where it was and an empty result is returned.
+	 * 
+	 * The errors thrown by this list while the parser runs are created without stack traces,
+	 * as they are expected to be caught. Parsers can do the same with {@link #error(String, Token)}.
+	 * 
+	 * @param parser The parser
+	 * @param <E> The type of the result
+	 * @return The result, or empty if the parser failed
+	 */
+	public <E> Optional<E> tryParse(Parser<E> parser) {
+		int mark = index;
+		speculation++;
+		try {
+			return Optional.ofNullable(parser.parse(this));
+		} catch (ParsingException e) {
+			index = mark;
+			return Optional.empty();
+		} finally {
+			speculation--;
+		}
+	}
+	
+	/**
+	 * Tests if a parser is being tried with {@link #tryParse(Parser)}
+	 * 
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean isSpeculating() {
+		return speculation > 0;
+	}
+	
+	/**
+	 * Creates a syntax error. Inside {@link #tryParse(Parser)} the error is created without a stack trace.
+	 * 
+	 * @param message The message
+	 * @param token The erronous token
+	 * @return The error
+	 */
+	public ParsingException error(String message, Token token) {
+		return speculation > 0 ? new ParsingException(message, token, false) : new ParsingException(message, token);
+	}
+	
+	private ParsingException error(String[] expected, Token token) {
+		return new ParsingException(expected, token, speculation == 0);
+	}
+	
 	/**
 	 * Appends a token to the end of the list
 	 * 
@@ -195,7 +500,7 @@ public class TokenList {
 	 * @return list
 	 */
 	public List<Token> toList() {
-		return Collections.unmodifiableList(tokens);
+		return tokens.asList();
 	}
 	
 	@Override
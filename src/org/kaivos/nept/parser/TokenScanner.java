@@ -1,21 +1,26 @@
 package org.kaivos.nept.parser;
 
-//import static java.util.stream.Collectors.toList;
-
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.file.Paths;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-//import java.util.HashMap;
+import java.util.HashMap;
 import java.util.List;
-//import java.util.Map.Entry;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-//import org.kaivos.röda.Timer;
-
 /**
  * Reads tokens from a string
  * 
@@ -24,7 +29,7 @@ import java.util.regex.Pattern;
  */
 public class TokenScanner {
 
-	private static class Pair<T, U> {
+	static class Pair<T, U> {
 		private final T a;
 		private final U b;
 
@@ -43,7 +48,7 @@ public class TokenScanner {
 		}
 	}
 
-	private static class Trair<T, U, V> {
+	static class Trair<T, U, V> {
 		private final T a;
 		private final U b;
 		private final V c;
@@ -68,33 +73,31 @@ public class TokenScanner {
 		}
 	}
 
-	@SuppressWarnings("unchecked")
-	private ArrayList<String>[] ignore = new ArrayList[256];
-	private String dontIgnore = "";
-	@SuppressWarnings("unchecked")
-	private ArrayList<Pair<String, String>>[] ignoreBlocks = new ArrayList[256];
-	private boolean ignoreWhitespace = true;
+	ArrayList<String> ignore = new ArrayList<>();
+	String dontIgnore = "";
+	ArrayList<Pair<String, String>> ignoreBlocks = new ArrayList<>();
+	boolean ignoreWhitespace = true;
 
-	@SuppressWarnings("unchecked")
-	private ArrayList<Pattern>[] patterns = new ArrayList[256];
+	ArrayList<Pattern> patterns = new ArrayList<>();
+	ArrayList<char[]> patternStarts = new ArrayList<>();
 	
-	@SuppressWarnings("unchecked")
-	private ArrayList<String>[] operators = new ArrayList[256];
-	private String oneCharOperators = "";
+	ArrayList<String> operators = new ArrayList<>();
+	String oneCharOperators = "";
 	
-	@SuppressWarnings("unchecked")
-	private ArrayList<Trair<String, String, Character>>[] stringBlocks = new ArrayList[256];
-	private ArrayList<Pair<Character, String>> escapeCodes = new ArrayList<>();
-	private ArrayList<Trair<Character, Integer, Integer>> charEscapeCodes = new ArrayList<>();
-	private boolean allPunctuation = true;
+	ArrayList<Trair<String, String, Character>> stringBlocks = new ArrayList<>();
+	ArrayList<Pair<Character, String>> escapeCodes = new ArrayList<>();
+	ArrayList<Trair<Character, Integer, Integer>> charEscapeCodes = new ArrayList<>();
+	boolean allPunctuation = true;
+	boolean lazyStrings = false;
+	boolean generateMatcher = false;
 
-	private String EOF = null;
-	
-	{ for (int i = 0; i < operators.length; i++) operators[i] = new ArrayList<>(); }
-	{ for (int i = 0; i < ignoreBlocks.length; i++) ignoreBlocks[i] = new ArrayList<>(); }
-	{ for (int i = 0; i < ignore.length; i++) ignore[i] = new ArrayList<>(); }
-	{ for (int i = 0; i < stringBlocks.length; i++) stringBlocks[i] = new ArrayList<>(); }
-	{ for (int i = 0; i < patterns.length; i++) patterns[i] = new ArrayList<>(); }
+	String EOF = null;
+
+	/* The texts registered as kinds, starting from Token.FIRST_KIND */
+	ArrayList<String> kinds = new ArrayList<>();
+	private HashMap<String, Integer> kindIds = new HashMap<>();
+
+	private volatile ScannerAutomaton automaton;
 
 	/**
 	 * Tells the scanner to ignore all instances of this character in the source code
@@ -117,7 +120,8 @@ public class TokenScanner {
 		if (seq.length() == 1 && dontIgnore.indexOf(seq.charAt(0)) >= 0)
 			throw new IllegalArgumentException("The character being ignored is already marked not to be ignored");
 
-		ignore[seq.charAt(0)].add(seq);
+		ignore.add(seq);
+		automaton = null;
 		return this;
 	}
 
@@ -128,10 +132,11 @@ public class TokenScanner {
 	 * @return self
 	 */
 	public TokenScanner dontIgnore(char chr) {
-		if (ignore[chr].contains(""+chr))
+		if (ignore.contains(""+chr))
 			throw new IllegalArgumentException("The character marked to not being ignored is already marked to be ignored");
 
 		dontIgnore += chr;
+		automaton = null;
 		return this;
 	}
 
@@ -143,6 +148,7 @@ public class TokenScanner {
 	 */
 	public TokenScanner ignoreWhitespace(boolean value) {
 		ignoreWhitespace = value;
+		automaton = null;
 		return this;
 	}
 
@@ -154,20 +160,26 @@ public class TokenScanner {
 	 */
 	public TokenScanner appendOnEOF(String text) {
 		EOF = text;
+		if (text != null && !text.isEmpty()) kindOf(text);
+		automaton = null;
 		return this;
 	}
 
 	/**
 	 * Declares a new pattern rule
 	 * 
+	 * The pattern is matched only at the current position. If several patterns can match,
+	 * the one declared first is used.
+	 * 
 	 * @param p The pattern
-	 * @param startsWith Possible characters that can start the pattern for optimization purposes. Can be left empty.
+	 * @param startsWith Possible characters that can start the pattern for optimization purposes.
+	 * Can be left empty, in which case they are derived from the pattern.
 	 * @return self
 	 */
 	public TokenScanner addPatternRule(Pattern p, char... startsWith) {
-		Arrays.sort(startsWith);
-		for (char sw : startsWith)
-			patterns[sw].add(p);
+		patterns.add(p);
+		patternStarts.add(startsWith.clone());
+		automaton = null;
 		return this;
 	}
 
@@ -178,7 +190,9 @@ public class TokenScanner {
 	 * @return self
 	 */
 	public TokenScanner addOperatorRule(String operator) {
-		operators[operator.charAt(0)].add(operator);
+		operators.add(operator);
+		kindOf(operator);
+		automaton = null;
 		return this;
 	}
 
@@ -191,7 +205,10 @@ public class TokenScanner {
 	 * @return self
 	 */
 	public TokenScanner addStringRule(char start, char end, char escape) {
-		stringBlocks[start].add(new Trair<>(""+start, ""+end, escape));
+		stringBlocks.add(new Trair<>(""+start, ""+end, escape));
+		kindOf(""+start);
+		kindOf(""+end);
+		automaton = null;
 		return this;
 	}
 
@@ -204,7 +221,10 @@ public class TokenScanner {
 	 * @return self
 	 */
 	public TokenScanner addStringRule(String start, String end, char escape) {
-		stringBlocks[start.charAt(0)].add(new Trair<>(start, end, escape));
+		stringBlocks.add(new Trair<>(start, end, escape));
+		kindOf(start);
+		kindOf(end);
+		automaton = null;
 		return this;
 	}
 
@@ -217,6 +237,7 @@ public class TokenScanner {
 	 */
 	public TokenScanner addEscapeCode(char code, String replacement) {
 		escapeCodes.add(new Pair<>(code, replacement));
+		automaton = null;
 		return this;
 	}
 
@@ -233,6 +254,7 @@ public class TokenScanner {
 	 */
 	public TokenScanner addCharacterEscapeCode(char code, int numberOfDigits, int radix) {
 		charEscapeCodes.add(new Trair<>(code, numberOfDigits, radix));
+		automaton = null;
 		return this;
 	}
 
@@ -244,18 +266,23 @@ public class TokenScanner {
 	 * @return self
 	 */
 	public TokenScanner addCommentRule(String start, String end) {
-		ignoreBlocks[start.charAt(0)].add(new Pair<>(start, end));
+		ignoreBlocks.add(new Pair<>(start, end));
+		automaton = null;
 		return this;
 	}
 
 	/**
-	 * Declares all characters of the parameter string as one character operators
+	 * Declares all characters of the parameter string as one character operators.
+	 * A character outside the Basic Multilingual Plane is one operator, not two.
 	 * 
 	 * @param operatorString The operators
 	 * @return self
 	 */
 	public TokenScanner addOperators(String operatorString) {
 		oneCharOperators += operatorString;
+		for (String operator : characters(operatorString))
+			kindOf(operator);
+		automaton = null;
 		return this;
 	}
 
@@ -267,9 +294,112 @@ public class TokenScanner {
 	 */
 	public TokenScanner separateIdentifiersAndPunctuation(boolean value) {
 		allPunctuation = value;
+		automaton = null;
+		return this;
+	}
+
+	/**
+	 * Tells the scanner to decode the escape codes of string literals only when the text of the
+	 * token is requested. The escape codes are still checked when the source is read. This is
+	 * used only when the tokens are stored as offsets to the source (see {@link #tokenize(String, String, int)}),
+	 * and is set to false by default.
+	 * 
+	 * @param value true or false
+	 * @return self
+	 */
+	public TokenScanner decodeStringsLazily(boolean value) {
+		lazyStrings = value;
+		automaton = null;
+		return this;
+	}
+
+	/**
+	 * Tells the scanner to generate a class that matches the literal rules (operators and the
+	 * delimiters of ignored sequences, comments and strings) with switch statements instead of reading
+	 * them from tables. The class is defined when the scanner is compiled, which takes longer, so this is
+	 * useful for scanners that read a lot of input. The tables are used if the class can't be defined
+	 * (on Java 8, or if there are too many rules). This is set to false by default.
+	 * 
+	 * @param value true or false
+	 * @return self
+	 */
+	public TokenScanner generateMatcher(boolean value) {
+		generateMatcher = value;
+		automaton = null;
 		return this;
 	}
 
+	/**
+	 * Tests if the literal rules are matched by a generated class (see {@link #generateMatcher(boolean)}).
+	 * The scanner is compiled if it has been changed.
+	 * 
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean hasGeneratedMatcher() {
+		return automaton().hasGeneratedMatcher();
+	}
+
+	/**
+	 * Declares keywords. Keywords are read like other identifiers, but they are given their own kinds.
+	 * 
+	 * @param keywords The keywords
+	 * @return self
+	 */
+	public TokenScanner addKeywords(String... keywords) {
+		for (String keyword : keywords)
+			kindOf(keyword);
+		return this;
+	}
+
+	/* Splits a string to code points */
+	static List<String> characters(String text) {
+		List<String> characters = new ArrayList<>();
+		for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i)))
+			characters.add(text.substring(i, i + Character.charCount(text.codePointAt(i))));
+		return characters;
+	}
+
+	static boolean isPunctuationKind(char chr) {
+		return chr > ' ' && chr < 127 && !Character.isLetterOrDigit(chr);
+	}
+
+	/**
+	 * Returns the kind of the tokens with the given text, registering a new kind if needed.
+	 * 
+	 * A single ASCII punctuation character is its own kind. Other texts (operators, string delimiters,
+	 * keywords and the EOF text) are given kinds starting from {@link Token#FIRST_KIND} in the order
+	 * they are registered. Tokens with other texts are of kind {@link Token#OTHER}, and the contents
+	 * of string literals are of kind {@link Token#STRING}.
+	 * 
+	 * @param text The text
+	 * @return The kind
+	 */
+	public int kindOf(String text) {
+		if (text.length() == 1 && isPunctuationKind(text.charAt(0)))
+			return text.charAt(0);
+		Integer kind = kindIds.get(text);
+		if (kind == null) {
+			kindIds.put(text, kind = Token.FIRST_KIND + kinds.size());
+			kinds.add(text);
+			automaton = null;
+		}
+		return kind;
+	}
+
+	/**
+	 * Returns a set of the kinds of the given texts
+	 * 
+	 * @param texts The texts
+	 * @return The set
+	 * @see #kindOf(String)
+	 */
+	public TokenSet tokenSet(String... texts) {
+		int[] kinds = new int[texts.length];
+		for (int i = 0; i < texts.length; i++)
+			kinds[i] = kindOf(texts[i]);
+		return new TokenSet(kinds, texts);
+	}
+
 	/**
 	 * Returns the operator list
 	 * 
@@ -277,13 +407,30 @@ public class TokenScanner {
 	 */
 	public List<String> getOperators() {
 		List<String> newOperators = new ArrayList<>();
-		for (ArrayList<String> operatorList : operators)
-			newOperators.addAll(operatorList);
-		for (char chr : oneCharOperators.toCharArray())
-			newOperators.add(String.valueOf(chr));
+		newOperators.addAll(operators);
+		newOperators.addAll(characters(oneCharOperators));
 		return newOperators;
 	}
 
+	/**
+	 * Compiles the rules to an automaton used by the <code>tokenize</code> methods.
+	 * The automaton is immutable, so a compiled scanner can be used from multiple threads
+	 * as long as no new rules are added. Adding a rule discards the automaton, and it is
+	 * compiled again on the next call to <code>tokenize</code>.
+	 * 
+	 * @return self
+	 */
+	public TokenScanner compile() {
+		automaton();
+		return this;
+	}
+
+	ScannerAutomaton automaton() {
+		ScannerAutomaton a = automaton;
+		if (a == null) automaton = a = new ScannerAutomaton(this);
+		return a;
+	}
+
 	/**
 	 * Reads tokens from a file
 	 * 
@@ -292,13 +439,129 @@ public class TokenScanner {
 	 * @throws IOException on io error
 	 */
 	public TokenList tokenize(File file) throws IOException {
-		String content = "";
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			return tokenize(channel, Charset.defaultCharset(), file.getName());
+		}
+	}
 
-		for (String s : java.nio.file.Files.readAllLines(Paths.get(file.toURI()), Charset.defaultCharset())) {
-			content += s + "\n";
+	/**
+	 * Reads tokens from a UTF-8 file by mapping it to memory. If the file is pure ASCII,
+	 * its bytes are scanned directly and only the texts of the tokens are converted to strings.
+	 * Otherwise the mapped bytes are decoded in chunks as they are scanned.
+	 * 
+	 * @param file The file
+	 * @return A TokenList
+	 * @throws IOException on io error
+	 */
+	public TokenList tokenizeMapped(File file) throws IOException {
+		return tokenizeMapped(file, false);
+	}
+
+	/**
+	 * Reads tokens from a UTF-8 file by mapping it to memory, like {@link #tokenizeMapped(File)}.
+	 * If the file is pure ASCII, it is scanned in parallel like in {@link #tokenizeParallel(String, String, int)}.
+	 * 
+	 * @param file The file
+	 * @return A TokenList
+	 * @throws IOException on io error
+	 */
+	public TokenList tokenizeMappedParallel(File file) throws IOException {
+		return tokenizeMapped(file, true);
+	}
+
+	private TokenList tokenizeMapped(File file, boolean parallel) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			if (channel.size() > Integer.MAX_VALUE)
+				return tokenize(channel, StandardCharsets.UTF_8, file.getName());
+
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (ScanInput.AsciiInput.isAscii(bytes)) {
+				ScanInput in = new ScanInput.AsciiInput(bytes);
+				return parallel ? tokenizeParallel(in, file.getName(), 1) : tokenize(in, file.getName(), 1);
+			}
+
+			CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
+			return tokenize(new ScanInput.DecodingReader(bytes, decoder), file.getName());
 		}
+	}
 
-		return tokenize(content, file.getName());
+	/**
+	 * Reads tokens from a reader. The reader is read incrementally to a fixed-size buffer,
+	 * so the whole source is never held in memory at once.
+	 * 
+	 * @param reader The reader
+	 * @param file The name of the file or stream
+	 * @return A TokenList
+	 * @throws IOException on io error
+	 */
+	public TokenList tokenize(Reader reader, String file) throws IOException {
+		try {
+			ScannerAutomaton automaton = automaton();
+			TokenStorage tokens = new TokenStorage.ListStorage(file, 1, automaton.kindTexts);
+			automaton.tokenize(new ScanInput.ReaderInput(reader), tokens);
+			return new TokenList(tokens);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Reads tokens from a reader on demand, as the parser asks for them. Only a window of the latest
+	 * tokens is kept in memory, so inputs of any length can be parsed, as long as the parser does not go
+	 * back more than 64 tokens. The returned list can't be converted to a list with {@link TokenList#toList()}.
+	 * 
+	 * @param reader The reader
+	 * @param file The name of the file or stream
+	 * @return A TokenList
+	 * @throws UncheckedIOException on io error while the tokens are read
+	 */
+	public TokenList tokenizeLazily(Reader reader, String file) {
+		return tokenizeLazily(reader, file, 64);
+	}
+
+	/**
+	 * Reads tokens from a reader on demand, like {@link #tokenizeLazily(Reader, String)}
+	 * 
+	 * @param reader The reader
+	 * @param file The name of the file or stream
+	 * @param window The number of tokens before the furthest token read that are kept in memory
+	 * @return A TokenList
+	 * @throws UncheckedIOException on io error while the tokens are read
+	 */
+	public TokenList tokenizeLazily(Reader reader, String file, int window) {
+		if (window < 1) throw new IllegalArgumentException("window must be positive");
+		return new TokenList(new TokenStorage.StreamStorage(automaton(), new ScanInput.ReaderInput(reader), file, 1, window));
+	}
+
+	/**
+	 * Reads tokens from a stream
+	 * 
+	 * @param in The stream
+	 * @param charset The charset used to decode the stream
+	 * @param file The name of the file or stream
+	 * @return A TokenList
+	 * @throws IOException on io error
+	 */
+	public TokenList tokenize(InputStream in, Charset charset, String file) throws IOException {
+		return tokenize(new InputStreamReader(in, charset), file);
+	}
+
+	/**
+	 * Reads tokens from a channel
+	 * 
+	 * @param channel The channel
+	 * @param charset The charset used to decode the channel
+	 * @param file The name of the file or stream
+	 * @return A TokenList
+	 * @throws IOException on io error
+	 */
+	public TokenList tokenize(ReadableByteChannel channel, Charset charset, String file) throws IOException {
+		CharsetDecoder decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		return tokenize(Channels.newReader(channel, decoder, ScanInput.ReaderInput.BUFFER_SIZE), file);
 	}
 
 	/**
@@ -312,48 +575,6 @@ public class TokenScanner {
 		return tokenize(source, file, 1);
 	}
 	
-	/*
-	private Timer ignoreCharsTime = new Timer(),
-			ignoreTokensTime = new Timer(),
-			ignoreBlocksTime = new Timer(),
-			patternTime = new Timer(),
-			stringBlocksTime = new Timer(),
-			operatorsTime = new Timer(),
-			operatorCharsTime = new Timer(),
-			allPunctuationTime = new Timer(),
-			substringTime = new Timer();
-	
-	public void printStatistics() {
-		HashMap<String, Long> map = new HashMap<>();
-		map.put("ignoreChars", ignoreCharsTime.timeNanos());
-		map.put("ignoreTokens", ignoreTokensTime.timeNanos());
-		map.put("ignoreBlocks", ignoreBlocksTime.timeNanos());
-		map.put("pattern", patternTime.timeNanos());
-		map.put("stringBlocks", stringBlocksTime.timeNanos());
-		map.put("operators", operatorsTime.timeNanos());
-		map.put("operatorChars", operatorCharsTime.timeNanos());
-		map.put("allPunctuation", allPunctuationTime.timeNanos());
-		map.put("substring", substringTime.timeNanos());
-		
-		List<Entry<String, Long>> data = map.entrySet()
-				.stream().sorted((a, b) -> Long.compare(b.getValue(), a.getValue())).collect(toList());
-		
-		long sum = data.parallelStream().mapToLong(e -> e.getValue().longValue()).sum();
-		double acc = 0;
-		
-		System.out.printf("%5s %5s %6s %s\n", "%", "ACC", "MS", "FUNCTION");
-		
-		for (Entry<String, Long> e : data) {
-			String f = e.getKey();
-			double time = e.getValue() / 1_000_000d;
-			double percent = 100d * e.getValue() / sum;
-			acc += percent;
-			
-			System.out.printf("%5.2f %5.2f %6.2f %s\n", percent, acc, time, f);
-		}
-	}
-	*/
-
 	/**
 	 * Reads tokens
 	 * 
@@ -363,238 +584,107 @@ public class TokenScanner {
 	 * @return A TokenList
 	 */
 	public TokenList tokenize(String source, String file, int firstLine) {
-		ArrayList<Token> tokens = new ArrayList<Token>();
-
-		int line = firstLine;
-		StringBuilder currToken = new StringBuilder();
-
-		char[] oneCharOperatorsArr = oneCharOperators.toCharArray();
-		Arrays.sort(oneCharOperatorsArr);
-		
-		char[] dontIgnoreArr = dontIgnore.toCharArray();
-		Arrays.sort(dontIgnoreArr);
-		
-		int i = -1;
-		outer: while (i < source.length()-1) {
-			i++;
-			
-			//ignoreCharsTime.start();
-
-			if (source.charAt(i)=='\n') line++;
-			if (ignoreWhitespace
-					&& Character.isWhitespace(source.charAt(i))
-					&& Arrays.binarySearch(dontIgnoreArr, source.charAt(i)) < 0) {
-				if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-				currToken.setLength(0);
-				
-				//ignoreCharsTime.stop();
-				continue;
-			}
-			
-			//ignoreCharsTime.stop();
-
-			//substringTime.start();
-			
-			boolean isBelow256 = source.charAt(i) < 256;
-
-			//substringTime.stop();
-			
-			//ignoreTokensTime.start();
-			
-			if (isBelow256) {
-				for (String seq : ignore[source.charAt(i)]) {
-					if (source.startsWith(seq, i)) {
-						if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-						currToken.setLength(0);
-						i += seq.length()-1;
-						
-						//ignoreTokensTime.stop();
-						continue outer;
-					}
-				}
-			}
-			
-			//ignoreTokensTime.stop();
-			
-			//ignoreBlocksTime.start();
-
-			if (isBelow256) {
-				for (Pair<String, String> block : ignoreBlocks[source.charAt(i)]) {
-					String startSeq = block.getA();
-					String endSeq = block.getB();
-					if (source.startsWith(startSeq, i)) {
-						if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-						currToken.setLength(0);
-	
-						i += startSeq.length()-1;
-						
-						while (true) {
-							i++;
-							if (source.startsWith(endSeq, i)) {
-								i += endSeq.length()-1;
-								
-								//ignoreBlocksTime.stop();
-								continue outer;
-							} else {
-								if (source.length() <= i)
-									throw new ParsingException("Unexpected EOF in the middle of a comment",
-											new Token(EOF, file, line));
-								if (source.charAt(i)=='\n')
-									line++;
-							}
-						}
-					}
-				}
-			}
-			
-			//ignoreBlocksTime.stop();
-			
-			//patternTime.start();
-			
-			if (isBelow256) {
-				for (Pattern p : patterns[source.charAt(i)]) {
-					Matcher m = p.matcher(source.substring(i));
-					if (m.find() && m.start() == 0) {
-						if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-						currToken.setLength(0);
-						tokens.add(new Token(source.substring(i, i+m.end()), file, line));
-						i = i+m.end()-1;
-						
-						//patternTime.stop();
-						continue outer;
-					}
-				}
-			}
-			
-			//patternTime.stop();
-			
-			//stringBlocksTime.start();
-
-			if (isBelow256) {
-				for (Trair<String, String, Character> block : stringBlocks[source.charAt(i)]) {
-					String startSeq = block.getA();
-					String endSeq = block.getB();
-					char escapeChar = block.getC();
-					if (source.startsWith(startSeq, i)) {
-						if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-						currToken.setLength(0);
-	
-						StringBuilder str = new StringBuilder();
-						tokens.add(new Token(startSeq, file, line));
-	
-						i += startSeq.length()-1;
-	
-						stringLoop: while (true) {
-							i++;
-							
-							if (source.length() > i && source.charAt(i) == '\n') line++;
-	
-							if (escapeChar != '\0' && source.length() > i && source.charAt(i) == escapeChar) {
-								if (source.startsWith(endSeq, i+1)) {
-									str.append(endSeq);
-									i += endSeq.length();
-									continue;
-								}
-								else if (source.length() >= i+2) {
-									for (Pair<Character, String> escapeCode : escapeCodes) {
-										if (source.charAt(i+1) == escapeCode.getA()) {
-											str.append(escapeCode.getB());
-											i++;
-											continue stringLoop;
-										}
-									}
-									for (Trair<Character, Integer, Integer> escapeCode : charEscapeCodes) {
-										if (source.charAt(i+1) == escapeCode.getA()) {
-											String characterCode = "";
-											for (int j = 2; j < escapeCode.getB()+2; j++) {
-												characterCode += source.charAt(i+2);
-												i++;
-											}
-											str.append((char) Integer.parseInt(characterCode, escapeCode.getC()));
-											i++;
-											continue stringLoop;
-										}
-									}
-									throw new ParsingException("Invalid escape sequence '"
-											+ escapeChar + source.charAt(i+1) + "'",
-											new Token(block.getA()+str, file, line));
-								}
-							}
-							if (source.startsWith(endSeq, i)) {
-								tokens.add(new Token(str.toString(), file, line));
-								tokens.add(new Token(endSeq, file, line));
-								i += endSeq.length()-1;
-								
-								//stringBlocksTime.stop();
-								continue outer;
-							} else if (source.length() > i) {
-								str.append(source.charAt(i));
-							} else {
-								throw new ParsingException("Unexpected EOF in the middle of a string constant",
-										new Token(EOF, file, line));
-							}
-						}
-					}
-				}
-			}
-			
-			//stringBlocksTime.stop();
-			
-			//operatorsTime.start();
-
-			if (isBelow256) {
-				for (String op : operators[source.charAt(i)]) {
-					if (source.startsWith(op, i)) {
-						if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-						currToken.setLength(0);
-						tokens.add(new Token(op, file, line));
-						i = i + op.length()-1;
-						
-						//operatorsTime.stop();
-						continue outer;
-					}
-				}
-			}
-			
-			//operatorsTime.stop();
-			
-			//operatorCharsTime.start();
-			
-			if (Arrays.binarySearch(oneCharOperatorsArr, source.charAt(i)) >= 0) {
-				if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-				currToken.setLength(0);
-				tokens.add(new Token(String.valueOf(source.charAt(i)), file, line));
-				
-				//operatorCharsTime.stop();
-				continue outer;
-			}
-			
-			//operatorCharsTime.stop();
-			
-			//allPunctuationTime.start();
-
-			if (allPunctuation && !Character.isLetter(source.charAt(i)) && !Character.isDigit(source.charAt(i))) {
-				if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
-				currToken.setLength(0);
-				tokens.add(new Token(""+source.charAt(i), file, line));
-				i = i + 0;
-				
-				//allPunctuationTime.stop();
-				continue outer;
-			}
-			
-			//allPunctuationTime.stop();
+		return tokenize(new ScanInput.StringInput(source), file, firstLine);
+	}
 
-			currToken.append(source.charAt(i));
+	/**
+	 * Reads tokens and passes them to a sink one at a time. No token objects or strings are created,
+	 * except for texts not found in the source as such (see {@link TokenSink}).
+	 * 
+	 * @param source The string
+	 * @param file The name of the file or stream, used in error messages
+	 * @param sink The sink
+	 * @return The number of tokens
+	 */
+	public int tokenize(String source, String file, TokenSink sink) {
+		ScannerAutomaton automaton = automaton();
+		TokenStorage tokens = new TokenStorage.SinkStorage(sink, file, 1);
+		automaton.tokenize(new ScanInput.StringInput(source), tokens);
+		return tokens.size();
+	}
+
+	/**
+	 * Reads tokens from a reader and passes them to a sink one at a time. The reader is read
+	 * incrementally to a fixed-size buffer, so the memory used does not depend on the length of the source.
+	 * 
+	 * @param reader The reader
+	 * @param file The name of the file or stream, used in error messages
+	 * @param sink The sink
+	 * @return The number of tokens
+	 * @throws IOException on io error
+	 */
+	public int tokenize(Reader reader, String file, TokenSink sink) throws IOException {
+		try {
+			ScannerAutomaton automaton = automaton();
+			TokenStorage tokens = new TokenStorage.SinkStorage(sink, file, 1);
+			automaton.tokenize(new ScanInput.ReaderInput(reader), tokens);
+			return tokens.size();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
 		}
-		
-		//printStatistics();
+	}
+
+	/**
+	 * Reads tokens using multiple threads
+	 * 
+	 * @param source The string
+	 * @param file The name of the file or stream
+	 * @return A TokenList
+	 */
+	public TokenList tokenizeParallel(String source, String file) {
+		return tokenizeParallel(source, file, 1);
+	}
 
-		if (currToken.length() > 0) tokens.add(new Token(currToken.toString(), file, line));
+	/**
+	 * Reads tokens using multiple threads. The source is split to chunks at line breaks, and the
+	 * chunks are scanned on the common fork-join pool. A chunk that was split in the middle of a comment,
+	 * a string or a token is scanned again with the next chunk, so the tokens are always the same as
+	 * from {@link #tokenize(String, String, int)}. Short sources are scanned on the calling thread.
+	 * 
+	 * @param source The string
+	 * @param file The name of the file or stream
+	 * @param firstLine The line number of source in the original file
+	 * @return A TokenList
+	 */
+	public TokenList tokenizeParallel(String source, String file, int firstLine) {
+		return tokenizeParallel(new ScanInput.StringInput(source), file, firstLine);
+	}
 
-		if (EOF != null && !EOF.isEmpty())
-			tokens.add(new Token(EOF, file, line));
+	private TokenList tokenizeParallel(ScanInput in, String file, int firstLine) {
+		return new TokenList(ParallelTokenizer.tokenize(automaton(), in, file, firstLine));
+	}
+
+	/**
+	 * Reads tokens again after the source was edited. Only the tokens near the edit are read again,
+	 * and the rest are copied from the previous list with their offsets and lines moved.
+	 * 
+	 * The result is the same as from <code>tokenize(newText, file, firstLine)</code> with the file name and
+	 * the first line of the previous list. If the previous list was not read from oldText by this scanner
+	 * with its current rules, the whole new source is read.
+	 * 
+	 * @param previous The tokens read from the old source
+	 * @param oldText The old source
+	 * @param offset The position of the edit
+	 * @param removed The number of characters removed at offset
+	 * @param inserted The text inserted at offset
+	 * @return A TokenList of the new source
+	 */
+	public TokenList retokenize(TokenList previous, String oldText, int offset, int removed, String inserted) {
+		String newText = oldText.substring(0, offset) + inserted + oldText.substring(offset + removed);
+		TokenStorage tokens = previous.storage();
+		if (!(tokens instanceof CompactTokenStorage)) {
+			String file = tokens.size() == 0 ? null : tokens.get(0).getFile();
+			return tokenize(newText, file, tokens.firstLine());
+		}
+		return new TokenList(((CompactTokenStorage) tokens).retokenize(automaton(), oldText,
+				new ScanInput.StringInput(newText), offset, removed, inserted.length()));
+	}
 
+	/* Reads tokens from an input that is kept in memory, storing them as offsets to it */
+	private TokenList tokenize(ScanInput in, String file, int firstLine) {
+		ScannerAutomaton automaton = automaton();
+		TokenStorage tokens = new CompactTokenStorage(in, file, firstLine, automaton.kindTexts);
+		automaton.tokenize(in, tokens);
 		return new TokenList(tokens);
 	}
 
@@ -0,0 +1,80 @@
+package org.kaivos.nept.parser;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of token kinds, used to test tokens without comparing their texts
+ * 
+ * @author Iikka Hauhio
+ *
+ * @see TokenScanner#tokenSet(String...)
+ */
+public final class TokenSet {
+
+	private final long[] bits;
+	private final String[] texts;
+
+	TokenSet(int[] kinds, String[] texts) {
+		int max = 0;
+		for (int kind : kinds) max = Math.max(max, kind);
+		this.bits = new long[max / 64 + 1];
+		for (int kind : kinds)
+			bits[kind >>> 6] |= 1L << kind;
+		this.texts = texts;
+	}
+
+	private TokenSet(long[] bits, String[] texts) {
+		this.bits = bits;
+		this.texts = texts;
+	}
+
+	/**
+	 * Tests if the set contains a kind
+	 * 
+	 * @param kind The kind
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean contains(int kind) {
+		int word = kind >>> 6;
+		return word < bits.length && (bits[word] & (1L << kind)) != 0;
+	}
+
+	/**
+	 * Tests if the set contains the kind of a token
+	 * 
+	 * @param token The token
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	public boolean contains(Token token) {
+		return contains(token.getKind());
+	}
+
+	/**
+	 * Returns a set containing the kinds of both sets
+	 * 
+	 * @param other The other set
+	 * @return The union
+	 */
+	public TokenSet union(TokenSet other) {
+		long[] newBits = Arrays.copyOf(bits, Math.max(bits.length, other.bits.length));
+		for (int i = 0; i < other.bits.length; i++)
+			newBits[i] |= other.bits[i];
+		String[] newTexts = Arrays.copyOf(texts, texts.length + other.texts.length);
+		System.arraycopy(other.texts, 0, newTexts, texts.length, other.texts.length);
+		return new TokenSet(newBits, newTexts);
+	}
+
+	/**
+	 * Returns the texts the set was created from
+	 * 
+	 * @return A copy of the texts
+	 */
+	public String[] getTexts() {
+		return texts.clone();
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(texts);
+	}
+}
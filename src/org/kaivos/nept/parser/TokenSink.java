@@ -0,0 +1,28 @@
+package org.kaivos.nept.parser;
+
+/**
+ * Receives the tokens read by a {@link TokenScanner} one at a time, without storing them to a list.
+ *
+ * The text of the token is given as a range of a character sequence that is valid only during the call.
+ * Usually the sequence is the input itself, and the range is the position of the token in the input.
+ * Texts not found in the input as such, like the contents of string literals containing escape codes
+ * and the text appended on EOF, are given as strings of their own.
+ *
+ * @author Iikka Hauhio
+ *
+ * @see TokenScanner#tokenize(String, String, TokenSink)
+ */
+@FunctionalInterface
+public interface TokenSink {
+
+	/**
+	 * Receives a token
+	 *
+	 * @param kind The kind of the token, see {@link Token#getKind()}
+	 * @param buffer The character sequence containing the text of the token
+	 * @param start The start position of the text in the buffer
+	 * @param end The end position of the text in the buffer
+	 * @param line The line number of the token
+	 */
+	void token(int kind, CharSequence buffer, int start, int end, int line);
+}
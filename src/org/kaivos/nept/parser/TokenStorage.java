@@ -0,0 +1,503 @@
+package org.kaivos.nept.parser;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The tokens of a {@link TokenList}
+ * 
+ * @author Iikka Hauhio
+ *
+ */
+abstract class TokenStorage {
+
+	/**
+	 * Returns the number of tokens
+	 * 
+	 * @return The size
+	 */
+	abstract int size();
+
+	/**
+	 * Returns a token
+	 * 
+	 * @param index The index of the token
+	 * @return The token
+	 * @throws IndexOutOfBoundsException if there is no such token
+	 */
+	abstract Token get(int index);
+
+	/**
+	 * Returns the text of a token
+	 * 
+	 * @param index The index of the token
+	 * @return The text
+	 * @throws IndexOutOfBoundsException if there is no such token
+	 */
+	String getString(int index) {
+		return get(index).getToken();
+	}
+
+	/**
+	 * Returns the kind of a token
+	 * 
+	 * @param index The index of the token
+	 * @return The kind
+	 * @throws IndexOutOfBoundsException if there is no such token
+	 */
+	int kind(int index) {
+		return get(index).getKind();
+	}
+
+	/**
+	 * Compares the text of a token to a string
+	 * 
+	 * @param index The index of the token
+	 * @param text The string
+	 * @return <code>true</code> if the token exists and its text equals the string, otherwise <code>false</code>
+	 */
+	boolean textEquals(int index, String text) {
+		return has(index) && getString(index).equals(text);
+	}
+
+	/**
+	 * Appends a token
+	 * 
+	 * @param token The token
+	 */
+	abstract void add(Token token);
+
+	/**
+	 * Appends a token read by the scanner from the input
+	 * 
+	 * @param in The input
+	 * @param start The start position of the token
+	 * @param end The end position of the token
+	 * @param kind The kind of the token
+	 */
+	abstract void addSpan(ScanInput in, int start, int end, int kind);
+
+	/**
+	 * Appends a token read by the scanner, whose text is not found in the input as such
+	 * 
+	 * @param in The input
+	 * @param pos The position of the token
+	 * @param text The text of the token
+	 * @param kind The kind of the token
+	 */
+	abstract void addText(ScanInput in, int pos, String text, int kind);
+
+	/**
+	 * Appends the contents of a string literal whose escape codes have not been decoded yet.
+	 * By default the contents are decoded immediately.
+	 * 
+	 * @param in The input
+	 * @param start The start position of the contents
+	 * @param end The end position of the contents
+	 * @param automaton The automaton used to decode the contents
+	 * @param rule The string rule
+	 */
+	void addEscaped(ScanInput in, int start, int end, ScannerAutomaton automaton, int rule) {
+		addText(in, start, automaton.decode(in, start, end, rule), Token.STRING);
+	}
+
+	/**
+	 * Tests if the scanner can stop reading, because the rest of the tokens are already known
+	 * 
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	boolean stopped() {
+		return false;
+	}
+
+	/**
+	 * Tells the storage where the scanner stopped after {@link #stopped()} returned true
+	 * 
+	 * @param pos The position of the next token, where the scan can be continued
+	 */
+	void stoppedAt(int pos) {}
+
+	/**
+	 * Tests if there is a token at an index, reading more tokens if needed
+	 * 
+	 * @param index The index
+	 * @return <code>true</code> or <code>false</code>
+	 */
+	boolean has(int index) {
+		return index < size();
+	}
+
+	/**
+	 * Returns the line number given to the first line of the source
+	 * 
+	 * @return The line number
+	 */
+	int firstLine() {
+		return 1;
+	}
+
+	/**
+	 * Creates the exception thrown when a token after the last one is requested
+	 * 
+	 * @param index The index of the token
+	 * @return The exception
+	 */
+	RuntimeException noToken(int index) {
+		return new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+	}
+
+	/**
+	 * Creates a token that is not added to the storage, for error messages
+	 * 
+	 * @param in The input
+	 * @param pos The position of the token
+	 * @param text The text of the token
+	 * @param kind The kind of the token
+	 * @return The token
+	 */
+	abstract Token newToken(ScanInput in, int pos, String text, int kind);
+
+	/**
+	 * Returns an unmodifiable view of the tokens
+	 * 
+	 * @return The list
+	 */
+	List<Token> asList() {
+		return new AbstractList<Token>() {
+			@Override
+			public Token get(int index) {
+				return TokenStorage.this.get(index);
+			}
+
+			@Override
+			public int size() {
+				return TokenStorage.this.size();
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return asList().toString();
+	}
+
+	/**
+	 * Tokens stored as a list of token objects
+	 */
+	static final class ListStorage extends TokenStorage {
+
+		private final List<Token> tokens;
+		private final String file;
+		private final int firstLine;
+		private final String[] kindTexts;
+
+		ListStorage(List<Token> tokens) {
+			this(tokens, null, 1, null);
+		}
+
+		ListStorage(String file, int firstLine, String[] kindTexts) {
+			this(new ArrayList<>(), file, firstLine, kindTexts);
+		}
+
+		private ListStorage(List<Token> tokens, String file, int firstLine, String[] kindTexts) {
+			this.tokens = tokens;
+			this.file = file;
+			this.firstLine = firstLine;
+			this.kindTexts = kindTexts;
+		}
+
+		@Override
+		int size() {
+			return tokens.size();
+		}
+
+		@Override
+		int firstLine() {
+			return firstLine;
+		}
+
+		@Override
+		Token get(int index) {
+			return tokens.get(index);
+		}
+
+		@Override
+		void add(Token token) {
+			tokens.add(token);
+		}
+
+		@Override
+		void addSpan(ScanInput in, int start, int end, int kind) {
+			String text = kind > Token.STRING ? kindTexts[kind] : in.substring(start, end);
+			tokens.add(newToken(in, start, text, kind));
+		}
+
+		@Override
+		void addText(ScanInput in, int pos, String text, int kind) {
+			tokens.add(newToken(in, pos, text, kind));
+		}
+
+		@Override
+		Token newToken(ScanInput in, int pos, String text, int kind) {
+			return new Token(text, file, firstLine + in.lineAt(pos), in.columnAt(pos), kind);
+		}
+
+		@Override
+		List<Token> asList() {
+			return Collections.unmodifiableList(tokens);
+		}
+	}
+
+	/**
+	 * Tokens passed to a {@link TokenSink} instead of storing them. Only the number of tokens is kept.
+	 */
+	static final class SinkStorage extends TokenStorage {
+
+		private final TokenSink sink;
+		private final String file;
+		private final int firstLine;
+		private int size = 0;
+
+		SinkStorage(TokenSink sink, String file, int firstLine) {
+			this.sink = sink;
+			this.file = file;
+			this.firstLine = firstLine;
+		}
+
+		@Override
+		int size() {
+			return size;
+		}
+
+		@Override
+		Token get(int index) {
+			throw new UnsupportedOperationException("The tokens have been passed to a sink");
+		}
+
+		@Override
+		void add(Token token) {
+			size++;
+			sink.token(token.getKind(), token.getToken(), 0, token.getToken().length(), token.getLine());
+		}
+
+		@Override
+		void addSpan(ScanInput in, int start, int end, int kind) {
+			size++;
+			sink.token(kind, in, start, end, firstLine + in.lineAt(start));
+		}
+
+		@Override
+		void addText(ScanInput in, int pos, String text, int kind) {
+			size++;
+			sink.token(kind, text, 0, text.length(), firstLine + in.lineAt(pos));
+		}
+
+		@Override
+		Token newToken(ScanInput in, int pos, String text, int kind) {
+			return new Token(text, file, firstLine + in.lineAt(pos), in.columnAt(pos), kind);
+		}
+	}
+
+	/**
+	 * Tokens read from the input on demand. Only the latest tokens are kept in a ring buffer,
+	 * and older tokens are released as more tokens are read.
+	 */
+	static final class StreamStorage extends TokenStorage {
+
+		private final ScannerAutomaton automaton;
+		private final ScanInput in;
+		private final String file;
+		private final int firstLine;
+		private final String[] kindTexts;
+
+		private final Token[] ring;
+		private final int mask;
+		/* The number of tokens read so far */
+		private int count = 0;
+		/* The number of tokens wanted from the current scan */
+		private int demand = 0;
+		/* The position where the scan continues, or -1 if the input has been read */
+		private int resume = 0;
+
+		StreamStorage(ScannerAutomaton automaton, ScanInput in, String file, int firstLine, int window) {
+			this.automaton = automaton;
+			this.in = in;
+			this.file = file;
+			this.firstLine = firstLine;
+			this.kindTexts = automaton.kindTexts;
+			/* A scan can read a few tokens past the demand before it stops */
+			ring = new Token[Integer.highestOneBit((window + 8) * 2 - 1)];
+			mask = ring.length - 1;
+		}
+
+		/* Reads tokens until there is one at the index or the input ends */
+		private void fill(int index) {
+			while (index >= count && resume >= 0) {
+				demand = index + 1;
+				int from = resume;
+				resume = -1;
+				automaton.scan(in, this, from);
+				if (resume < 0) automaton.appendEOF(in, this);
+			}
+		}
+
+		@Override
+		int size() {
+			return count;
+		}
+
+		@Override
+		int firstLine() {
+			return firstLine;
+		}
+
+		@Override
+		boolean has(int index) {
+			fill(index);
+			return index < count;
+		}
+
+		@Override
+		Token get(int index) {
+			fill(index);
+			if (index >= count || index < 0)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + count);
+			if (index < count - ring.length)
+				throw new IndexOutOfBoundsException("Token " + index + " has been released");
+			return ring[index & mask];
+		}
+
+		@Override
+		void add(Token token) {
+			ring[count++ & mask] = token;
+		}
+
+		@Override
+		void addSpan(ScanInput in, int start, int end, int kind) {
+			String text = kind > Token.STRING ? kindTexts[kind] : in.substring(start, end);
+			add(newToken(in, start, text, kind));
+		}
+
+		@Override
+		void addText(ScanInput in, int pos, String text, int kind) {
+			add(newToken(in, pos, text, kind));
+		}
+
+		@Override
+		boolean stopped() {
+			return count >= demand;
+		}
+
+		@Override
+		void stoppedAt(int pos) {
+			resume = pos;
+		}
+
+		@Override
+		Token newToken(ScanInput in, int pos, String text, int kind) {
+			return new Token(text, file, firstLine + in.lineAt(pos), in.columnAt(pos), kind);
+		}
+
+		@Override
+		List<Token> asList() {
+			throw new UnsupportedOperationException("The tokens are read on demand");
+		}
+
+		@Override
+		public String toString() {
+			return "[" + count + " tokens read]";
+		}
+	}
+
+	/**
+	 * A view of a range of the tokens of another storage
+	 */
+	static final class View extends TokenStorage {
+
+		private final TokenStorage tokens;
+		private final int from, to;
+		private final Token end;
+		private final String what;
+
+		/**
+		 * Creates a view
+		 * 
+		 * @param tokens The tokens
+		 * @param from The index of the first token of the view
+		 * @param to The index after the last token of the view
+		 * @param end The token reported if a parser runs past the end of the view
+		 * @param what The name of the view used in error messages
+		 */
+		View(TokenStorage tokens, int from, int to, Token end, String what) {
+			this.tokens = tokens;
+			this.from = from;
+			this.to = to;
+			this.end = end;
+			this.what = what;
+		}
+
+		private int index(int index) {
+			if (index < 0)
+				throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + (to - from));
+			if (index >= to - from) throw noToken(index);
+			return from + index;
+		}
+
+		@Override
+		RuntimeException noToken(int index) {
+			return new ParsingException("Unexpected end of " + what, end);
+		}
+
+		@Override
+		int size() {
+			return to - from;
+		}
+
+		@Override
+		int firstLine() {
+			return tokens.firstLine();
+		}
+
+		@Override
+		Token get(int index) {
+			return tokens.get(index(index));
+		}
+
+		@Override
+		String getString(int index) {
+			return tokens.getString(index(index));
+		}
+
+		@Override
+		int kind(int index) {
+			return tokens.kind(index(index));
+		}
+
+		@Override
+		boolean textEquals(int index, String text) {
+			return index >= 0 && index < to - from && tokens.textEquals(from + index, text);
+		}
+
+		@Override
+		void add(Token token) {
+			throw new UnsupportedOperationException("A view can't be modified");
+		}
+
+		@Override
+		void addSpan(ScanInput in, int start, int end, int kind) {
+			throw new UnsupportedOperationException("A view can't be modified");
+		}
+
+		@Override
+		void addText(ScanInput in, int pos, String text, int kind) {
+			throw new UnsupportedOperationException("A view can't be modified");
+		}
+
+		@Override
+		Token newToken(ScanInput in, int pos, String text, int kind) {
+			return tokens.newToken(in, pos, text, kind);
+		}
+	}
+}
@@ -2,10 +2,44 @@ package org.kaivos.nept.parser.test;
 
 import static java.util.stream.Collectors.joining;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
 import org.junit.*;
 import static org.junit.Assert.*;
 
+import org.kaivos.nept.parser.ColumnEvaluator;
+import org.kaivos.nept.parser.Deferred;
+import org.kaivos.nept.parser.DoubleOperatorLibrary;
+import org.kaivos.nept.parser.DoubleOperatorTable;
+import org.kaivos.nept.parser.Expression;
+import org.kaivos.nept.parser.IntOperatorLibrary;
+import org.kaivos.nept.parser.IntOperatorTable;
+import org.kaivos.nept.parser.LongOperatorLibrary;
+import org.kaivos.nept.parser.LongOperatorTable;
+import org.kaivos.nept.parser.OperatorLibrary;
+import org.kaivos.nept.parser.OperatorPrecedenceParser;
+import org.kaivos.nept.parser.OperatorTable;
+import org.kaivos.nept.parser.PackratParser;
+import org.kaivos.nept.parser.ParseCache;
+import org.kaivos.nept.parser.Parser;
+import org.kaivos.nept.parser.SegmentParser;
+import org.kaivos.nept.parser.Token;
 import org.kaivos.nept.parser.TokenScanner;
+import org.kaivos.nept.parser.TokenSet;
+import org.kaivos.nept.parser.TokenSink;
 import org.kaivos.nept.parser.TokenList;
 import org.kaivos.nept.parser.ParsingException;
 
@@ -38,6 +72,27 @@ public class TokenScannerTest {
 			     joinTokens(t.tokenize("\\\"naakka\\ahaukka\\\"kotka\"\\", "<test>")));
 	}
 	
+	@Test
+	public void testLazyStrings() {
+		TokenScanner t = new TokenScanner()
+			.addStringRule('"', '"', '\\')
+			.addEscapeCode('n', "\n")
+			.addCharacterEscapeCode('u', 4, 16)
+			.addCharacterEscapeCode('U', 6, 16)
+			.decodeStringsLazily(true);
+		String source = "a \"x\\n\\u00e4\\U01F600\\\"\" \"plain\"";
+		assertEquals("a, \", x\n\u00E4\uD83D\uDE00\", \", \", plain, \"", joinTokens(t.tokenize(source, "<test>")));
+		assertEquals(joinTokens(t.tokenize(source, "<test>")),
+			joinTokens(t.decodeStringsLazily(false).tokenize(source, "<test>")));
+		
+		try {
+			t.tokenize("\"\\u00g0\"", "<test>");
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().contains("Invalid escape sequence"));
+		}
+	}
+	
 	@Test
 	public void testMulticharQuote() {
 		TokenScanner t = new TokenScanner()
@@ -74,4 +129,893 @@ public class TokenScannerTest {
 			     joinTokens(t.tokenize("abbakommenttidabba", "<test>")));
 	}
 	
+	@Test
+	public void testLongestOperator() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("=")
+			.addOperatorRule("<")
+			.addOperatorRule("==")
+			.addOperatorRule("<==")
+			.appendOnEOF("<EOF>");
+		assertEquals("a, ==, b, <==, c, <, =, d, <EOF>",
+			     joinTokens(t.tokenize("a==b<==c< =d", "<test>")));
+	}
+
+	@Test
+	public void testGeneratedMatcher() {
+		TokenScanner t = new TokenScanner()
+			.addOperators("+-*/()")
+			.addOperatorRule("==")
+			.addOperatorRule("<==")
+			.addOperatorRule("\u2192")
+			.addCommentRule("/*", "*/")
+			.addStringRule('"', '"', '\\')
+			.addEscapeCode('n', "\n")
+			.ignore("\\\n")
+			.appendOnEOF("<EOF>");
+		String source = "a==b<==c< =d/* x */\"s\\n\"\u2192(e*/f)\\\ng-/*";
+		String expected = joinTokens(t.tokenize(source + "*/", "<test>"));
+		assertFalse(t.hasGeneratedMatcher());
+		assertEquals(expected, joinTokens(t.generateMatcher(true).tokenize(source + "*/", "<test>")));
+		/* Java 8 can't define the class */
+		assertEquals(!System.getProperty("java.specification.version").startsWith("1."), t.hasGeneratedMatcher());
+		assertEquals("a, ==, b, <==, c, <, =, d, \", s\n, \", \u2192, (, e, *, /, f, ), g, -, <EOF>", expected);
+
+		try {
+			t.tokenize(source, "<test>");
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().contains("middle of a comment"));
+		}
+	}
+
+	@Test
+	public void testCompiledScannerIsReused() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("->")
+			.compile();
+		assertEquals("a, ->, b", joinTokens(t.tokenize("a->b", "<test>")));
+		t.addOperatorRule("-->");
+		assertEquals("a, -->, b", joinTokens(t.tokenize("a-->b", "<test>")));
+	}
+	
+	@Test
+	public void testReaderAcrossBufferBoundaries() throws IOException {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("<==")
+			.addOperators("<=")
+			.addCommentRule("/*", "*/")
+			.addStringRule("\"\"\"", "\"\"\"", '\\')
+			.addEscapeCode('n', "\n")
+			.appendOnEOF("<EOF>");
+		String source = "abc<==d /* kommentti\n */ \"\"\"naakka\\nkotka\"\"\" e<=f";
+		/* Returns one character at a time so that every token spans a buffer boundary */
+		Reader reader = new StringReader(source) {
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				return super.read(cbuf, off, Math.min(len, 1));
+			}
+		};
+		assertEquals(joinTokens(t.tokenize(source, "<test>")),
+			     joinTokens(t.tokenize(reader, "<test>")));
+
+		/* A string literal longer than the buffer */
+		StringBuilder literal = new StringBuilder("x\n \"\"\"");
+		for (int i = 0; i < 5000; i++) literal.append("line ").append(i).append("\\n\n");
+		literal.append("\"\"\" y\nz");
+		assertEquals(joinLocations(t.tokenize(literal.toString(), "<test>")),
+			     joinLocations(t.tokenize(new StringReader(literal.toString()), "<test>")));
+	}
+	
+	@Test
+	public void testMappedFile() throws IOException {
+		TokenScanner t = new TokenScanner()
+			.addOperators("+=")
+			.addCommentRule("/*", "*/")
+			.addStringRule('"', '"', '\\')
+			.appendOnEOF("<EOF>");
+		for (String source : new String[] { "a = b + \"c d\" /* e */ f\n", "\u00E5 = \"b\u00F6\" + \u00E4\n",
+				"/* a longer comment * / that spans\n\n lines */ x = \"a string with \\\" escapes\" +   \t  y\n" }) {
+			File file = File.createTempFile("nept", ".txt");
+			try {
+				Files.write(file.toPath(), source.getBytes(StandardCharsets.UTF_8));
+				assertEquals(joinTokens(t.tokenize(source, "<test>")),
+					     joinTokens(t.tokenizeMapped(file)));
+			} finally {
+				file.delete();
+			}
+		}
+	}
+	
+	String joinLocations(TokenList tl) {
+		return tl.toList().stream()
+			.map(token -> token + "@" + token.getLine() + ":" + token.getColumn())
+			.collect(joining(", "));
+	}
+	
+	@Test
+	public void testLocations() throws IOException {
+		TokenScanner t = new TokenScanner()
+			.addCommentRule("/*", "*/")
+			.addStringRule('"', '"', '\\')
+			.addEscapeCode('n', "\n")
+			.appendOnEOF("<EOF>");
+		String source = "a\n  bb /* x\n */ c \"d\\n\"\n";
+		String expected = "a@1:1, bb@2:3, c@3:5, \"@3:7, d\n@3:8, \"@3:11, <EOF>@4:1";
+		assertEquals(expected, joinLocations(t.tokenize(source, "<test>")));
+		assertEquals(expected, joinLocations(t.tokenize(new StringReader(source), "<test>")));
+		Token token = t.tokenize(source, "<test>", 10).seek(1);
+		assertEquals("<test>", token.getFile());
+		assertEquals(11, token.getLine());
+	}
+	
+	@Test
+	public void testSink() throws IOException {
+		TokenScanner t = new TokenScanner()
+			.addOperators("+=")
+			.addCommentRule("/*", "*/")
+			.addStringRule('"', '"', '\\')
+			.addEscapeCode('n', "\n")
+			.appendOnEOF("<EOF>");
+		String source = "a = b\n  /* x\n */ + \"c\\nd\" + \"e\"\n";
+		String expected = joinLocations(t.tokenize(source, "<test>")).replaceAll(":[0-9]+", "");
+		for (int pass = 0; pass < 2; pass++) {
+			StringBuilder sb = new StringBuilder();
+			TokenSink sink = (kind, buffer, start, end, line) -> {
+				if (sb.length() > 0) sb.append(", ");
+				sb.append(buffer, start, end).append("@").append(line);
+			};
+			int count = pass == 0 ? t.tokenize(source, "<test>", sink) : t.tokenize(new StringReader(source), "<test>", sink);
+			assertEquals(expected, sb.toString());
+			assertEquals(12, count);
+		}
+	}
+	
+	@Test
+	public void testLazyTokenList() throws IOException {
+		TokenScanner t = new TokenScanner()
+			.addOperators("=;")
+			.addCommentRule("/*", "*/")
+			.addStringRule('"', '"', '\\')
+			.appendOnEOF("<EOF>");
+		String source = "a = \"b c\"; /* d */\n e = f;\n";
+		TokenList eager = t.tokenize(source, "<test>");
+		TokenList lazy = t.tokenizeLazily(new StringReader(source), "<test>", 4);
+		assertEquals(joinLocations(eager), eager.toList().stream()
+			.map(token -> { Token next = lazy.next(); return next + "@" + next.getLine() + ":" + next.getColumn(); })
+			.collect(joining(", ")));
+		assertFalse(lazy.hasNext());
+
+		/* An endless stream of statements is read only as far as it is parsed */
+		int[] read = {0};
+		Reader endless = new Reader() {
+			@Override
+			public int read(char[] cbuf, int off, int len) {
+				for (int i = 0; i < len; i++) cbuf[off + i] = "x = \"y\";\n".charAt((read[0] + i) % 9);
+				read[0] += len;
+				return len;
+			}
+
+			@Override
+			public void close() {}
+		};
+		TokenList tl = t.tokenizeLazily(endless, "<test>", 8);
+		for (int i = 0; i < 100000; i++) {
+			int mark = tl.mark();
+			assertEquals("x", tl.nextString());
+			tl.accept("=");
+			tl.accept("\"");
+			assertEquals("y", tl.nextString());
+			assertEquals(i + 1, tl.seek(1).getLine());
+			tl.rewind(mark + 3);
+			tl.next();
+			tl.accept("\"");
+			tl.accept(";");
+		}
+		assertTrue(tl.hasNext());
+		assertTrue(read[0] < 100000 * 9 + 2 * 8192);
+		try {
+			tl.rewind(0);
+			tl.next();
+			fail();
+		} catch (IndexOutOfBoundsException e) {
+			assertTrue(e.getMessage().contains("released"));
+		}
+	}
+	
+	@Test
+	public void testKinds() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("==")
+			.addOperators("+(")
+			.addStringRule('"', '"', '\\')
+			.addKeywords("if")
+			.appendOnEOF("<EOF>");
+		TokenList tl = t.tokenize("if (a == b+c) \"if\"", "<test>");
+		int[] expected = { t.kindOf("if"), '(', Token.OTHER, t.kindOf("=="), Token.OTHER, '+', Token.OTHER, ')',
+				'"', Token.STRING, '"', t.kindOf("<EOF>") };
+		for (int kind : expected) {
+			assertEquals(kind, tl.seekKind());
+			assertEquals(kind, tl.next().getKind());
+		}
+		assertTrue(t.kindOf("if") >= Token.FIRST_KIND);
+		assertSame(tl.seekString(-9), tl.seekString(-9));
+	}
+	
+	@Test
+	public void testTokenSet() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("<=")
+			.addOperators("<+");
+		TokenSet comparisons = t.tokenSet("<", "<=");
+		TokenList tl = t.tokenize("a <= b + c", "<test>");
+		tl.next();
+		assertTrue(tl.isNext(comparisons));
+		assertEquals("<=", tl.accept(comparisons).getToken());
+		assertFalse(tl.acceptIfNext(comparisons));
+		tl.next();
+		try {
+			tl.accept(comparisons);
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().endsWith("Expected one of `<' or `<='"));
+		}
+	}
+	
+	@Test
+	public void testSpeculativeParsing() {
+		TokenScanner t = new TokenScanner()
+			.addOperators("(),=");
+		TokenList tl = t.tokenize("f(a, b) = c", "<test>");
+		/* A call statement fails at `=', so the list is rewound and parsed as an assignment */
+		Optional<String> call = tl.tryParse(l -> {
+			String name = l.nextString();
+			l.accept("(");
+			while (!l.isNext(")")) l.next();
+			l.accept(")");
+			if (l.hasNext()) {
+				ParsingException e = l.error("Expected end of statement", l.seek());
+				assertEquals(0, e.getStackTrace().length);
+				throw e;
+			}
+			return name;
+		});
+		assertFalse(call.isPresent());
+		assertEquals("f", tl.seekString());
+		assertFalse(tl.tryParse(l -> l.accept("=")).isPresent());
+
+		int mark = tl.mark();
+		TokenList fork = tl.fork();
+		fork.accept("f");
+		fork.accept("(");
+		assertEquals("f", tl.seekString());
+		tl.join(fork);
+		assertEquals("a", tl.nextString());
+		tl.rewind(mark);
+		assertEquals("f", tl.nextString());
+
+		try {
+			tl.accept(")");
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getStackTrace().length > 0);
+			assertTrue(e.getMessage().endsWith("Expected `)'"));
+		}
+	}
+	
+	/* expr := "(" expr ")" "!" | "(" expr ")" | "x" tries each expression twice without memoization */
+	Parser<String> nested(int[] calls, AtomicReference<Parser<String>> self) {
+		return tl -> {
+			calls[0]++;
+			if (tl.acceptIfNext("x")) return "x";
+			Optional<String> bang = tl.tryParse(l -> {
+				l.accept("(");
+				String e = self.get().parse(l);
+				l.accept(")");
+				l.accept("!");
+				return "(" + e + ")!";
+			});
+			if (bang.isPresent()) return bang.get();
+			tl.accept("(");
+			String e = self.get().parse(tl);
+			tl.accept(")");
+			return "(" + e + ")";
+		};
+	}
+
+	@Test
+	public void testPackratParser() {
+		TokenScanner t = new TokenScanner()
+			.addOperators("()!")
+			.appendOnEOF("<EOF>");
+		/* Every expression is parsed twice at each level, so the plain parser is called 2^21 times */
+		String source = "((((((((((((((((((((x))))))))))))))))))))";
+
+		AtomicReference<Parser<String>> plain = new AtomicReference<>();
+		int[] plainCalls = {0};
+		plain.set(nested(plainCalls, plain));
+		String expected = plain.get().parse(t.tokenize(source, "<test>"));
+		assertTrue(plainCalls[0] > 1000000);
+
+		for (int maxEntries : new int[] { PackratParser.DEFAULT_MAX_ENTRIES, 8 }) {
+			AtomicReference<Parser<String>> memo = new AtomicReference<>();
+			int[] memoCalls = {0};
+			PackratParser<String> packrat = PackratParser.memoize(nested(memoCalls, memo), maxEntries);
+			memo.set(packrat);
+			TokenList tl = t.tokenize(source, "<test>");
+			assertEquals(expected, packrat.parse(tl));
+			assertTrue(tl.isNext("<EOF>"));
+			assertTrue(packrat.size() <= Math.min(21, maxEntries));
+			if (maxEntries > 21) assertEquals(21, memoCalls[0]);
+		}
+	}
+	
+	/* decl := name "=" name ";" | name "(" name* ")" "{" decl* "}" */
+	String parseDeclaration(TokenList tl) {
+		String name = tl.nextString();
+		if (tl.acceptIfNext("=")) {
+			String value = tl.nextString();
+			tl.accept(";");
+			return name + "=" + value;
+		}
+		tl.accept("(");
+		StringBuilder sb = new StringBuilder(name).append("(");
+		while (!tl.isNext(")")) sb.append(tl.nextString());
+		tl.accept(")");
+		tl.accept("{");
+		sb.append("){");
+		while (!tl.isNext("}")) sb.append(parseDeclaration(tl)).append(" ");
+		tl.accept("}");
+		return sb.append("}").toString();
+	}
+
+	@Test
+	public void testSegmentParser() {
+		TokenScanner t = new TokenScanner()
+			.addOperators("=;(){}")
+			.appendOnEOF("<EOF>");
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 5000; i++) {
+			if (i % 2 == 0) source.append("a").append(i).append(" = b;\n");
+			else source.append("f").append(i).append("(x y) { c = d; g() { } }\n");
+		}
+		SegmentParser<String> parser = SegmentParser.of(this::parseDeclaration)
+			.delimiter(";")
+			.block("{", "}")
+			.brackets("(", ")")
+			.until("<EOF>");
+
+		TokenList tl = t.tokenize(source.toString(), "<test>");
+		List<String> decls = parser.parse(tl);
+		assertTrue(tl.isNext("<EOF>"));
+		assertEquals(5000, decls.size());
+		TokenList sequential = t.tokenize(source.toString(), "<test>");
+		for (String decl : decls) assertEquals(parseDeclaration(sequential), decl);
+		assertEquals("f4999(xy){c=d g(){} }", decls.get(4999));
+
+		source.insert(source.indexOf("f2001(") + 11, "= ");
+		source.insert(source.indexOf("f4001(") + 11, "= ");
+		try {
+			parser.parse(t.tokenize(source.toString(), "<test>"));
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().contains("`=' in <test>:2002:"));
+		}
+	}
+	
+	@Test
+	public void testBracketIndex() {
+		TokenScanner t = new TokenScanner()
+			.addOperators("(){};")
+			.addStringRule('"', '"', '\\')
+			.appendOnEOF("<EOF>");
+		TokenList tl = t.tokenize("f(a) { g(\"}\"); { h(); } } k(b) { } m() {", "<test>")
+			.indexBrackets("(", ")", "{", "}");
+		List<String> names = new ArrayList<>();
+		List<Deferred<Integer>> bodies = new ArrayList<>();
+		while (!tl.isNext("<EOF>")) {
+			names.add(tl.nextString());
+			assertEquals(")", tl.skipBalanced().getToken());
+			if (names.size() == 3) break;
+			/* Counts the statements and blocks of the body */
+			bodies.add(tl.deferBalanced(body -> {
+				int count = 0;
+				while (body.hasNext()) {
+					count++;
+					if (body.isNext("{")) body.skipBalanced();
+					else {
+						body.next();
+						body.skipBalanced();
+						body.accept(";");
+					}
+				}
+				return count;
+			}));
+		}
+		assertEquals(Arrays.asList("f", "k", "m"), names);
+		assertFalse(bodies.get(0).isParsed());
+		assertEquals(2, (int) bodies.get(0).get());
+		assertTrue(bodies.get(0).isParsed());
+		assertEquals(0, (int) bodies.get(1).get());
+
+		/* Running out of the tokens of a block is a syntax error, other index errors are not */
+		TokenList block = t.tokenize("{ a b } c", "<test>").indexBrackets("{", "}");
+		try {
+			block.deferBalanced(body -> body.nextString() + body.nextString() + body.nextString()).get();
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().contains("Unexpected end of block"));
+			assertTrue(e.getMessage().contains("`}'"));
+		}
+		block = t.tokenize("{ a b } c", "<test>").indexBrackets("{", "}");
+		try {
+			block.deferBalanced(body -> new ArrayList<String>().get(0)).get();
+			fail();
+		} catch (IndexOutOfBoundsException e) {}
+
+		try {
+			tl.skipBalanced();
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().contains("Unclosed bracket"));
+		}
+		try {
+			tl.next();
+			tl.skipBalanced();
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().endsWith("Expected one of `(' or `{'"));
+		}
+	}
+	
+	OperatorLibrary<String> operators(TokenList[] current) {
+		OperatorLibrary<String> library = new OperatorLibrary<>(() -> current[0].nextString());
+		library.add("or", (a, b) -> "(" + a + " or " + b + ")");
+		library.increaseLevel();
+		library.add("<", (a, b) -> "(" + a + "<" + b + ")");
+		library.add("==", (a, b) -> "(" + a + "==" + b + ")");
+		library.increaseLevel();
+		library.add("+", (a, b) -> "(" + a + "+" + b + ")");
+		library.add("-", (a, b) -> "(" + a + "-" + b + ")");
+		library.increaseLevel();
+		library.add("*", (a, b) -> "(" + a + "*" + b + ")");
+		/* The right side of . is a name followed by any number of ! */
+		library.add(".", 10, tl -> {
+			String name = tl.nextString();
+			while (tl.acceptIfNext("!")) name += "!";
+			return name;
+		}, (a, b) -> a + "." + b);
+		return library;
+	}
+
+	@Test
+	public void testOperatorTable() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("==")
+			.addOperators("<+-*.!")
+			.appendOnEOF("<EOF>");
+		TokenList[] current = new TokenList[1];
+		OperatorLibrary<String> library = operators(current);
+		OperatorPrecedenceParser<String> opp = OperatorPrecedenceParser.fromLibrary(library);
+		OperatorTable<String> byText = library.freeze();
+		OperatorTable<String> byKind = library.freeze(t);
+		assertEquals(10, byKind.getPrecedence("."));
+		assertEquals(-1, byKind.getPrecedence("!"));
+
+		String[] atoms = { "a", "b", "c" };
+		String[] ops = { "or", "<", "==", "+", "-", "*", "." };
+		Random random = new Random(7);
+		for (int n = 0; n < 500; n++) {
+			StringBuilder source = new StringBuilder(atoms[random.nextInt(3)]);
+			for (int k = random.nextInt(8); k > 0; k--) {
+				source.append(" ").append(ops[random.nextInt(ops.length)]).append(" ").append(atoms[random.nextInt(3)]);
+				if (random.nextInt(4) == 0) source.append("!");
+			}
+			String expected = opp.parse(current[0] = t.tokenize(source.toString(), "<test>"));
+			assertTrue(current[0].isNext("<EOF>") || current[0].isNext("!"));
+			assertEquals(expected, byText.parse(current[0] = t.tokenize(source.toString(), "<test>")));
+			assertEquals(expected, byKind.parse(current[0] = t.tokenize(source.toString(), "<test>")));
+		}
+		assertEquals("(a or ((b<(c+(a*b.c!!)))==a))",
+			byKind.parse(current[0] = t.tokenize("a or b < c + a * b . c ! ! == a", "<test>")));
+	}
+	
+	@Test
+	public void testExplicitStack() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("==")
+			.addOperators("<+-*.!")
+			.appendOnEOF("<EOF>");
+		TokenList[] current = new TokenList[1];
+		/* Logs the calls of the constructors and the RHS parsers */
+		StringBuilder log = new StringBuilder();
+		OperatorLibrary<String> library = operators(current);
+		OperatorPrecedenceParser<String> recursive = OperatorPrecedenceParser.newCustomizedParser(library::getPrecedence,
+			op -> tl -> { log.append("p").append(op); return library.getRhsParser(op).apply(tl); },
+			op -> (a, b) -> { log.append("c").append(op); return library.construct(op, a, b); });
+		OperatorPrecedenceParser<String> iterative = OperatorPrecedenceParser.newCustomizedParser(library::getPrecedence,
+			op -> tl -> { log.append("p").append(op); return library.getRhsParser(op).apply(tl); },
+			op -> (a, b) -> { log.append("c").append(op); return library.construct(op, a, b); })
+			.useExplicitStack(true);
+
+		String[] ops = { "or", "<", "==", "+", "-", "*", "." };
+		Random random = new Random(11);
+		for (int n = 0; n < 500; n++) {
+			StringBuilder source = new StringBuilder("a");
+			for (int k = random.nextInt(6); k > 0; k--)
+				source.append(" ").append(ops[random.nextInt(ops.length)]).append(" b");
+			log.setLength(0);
+			String expected = recursive.parse(current[0] = t.tokenize(source.toString(), "<test>"));
+			String expectedLog = log.toString();
+			log.setLength(0);
+			assertEquals(expected, iterative.parse(current[0] = t.tokenize(source.toString(), "<test>")));
+			assertEquals(expectedLog, log.toString());
+		}
+
+		/* Every operator has a higher level than the previous one, so the tree is nested to the right */
+		StringBuilder source = new StringBuilder("x");
+		for (int i = 1; i <= 100000; i++) source.append(" o").append(i).append(" x");
+		TokenList tl = new TokenScanner().appendOnEOF("<EOF>").tokenize(source.toString(), "<test>");
+		OperatorPrecedenceParser<Integer> deep = OperatorPrecedenceParser.newBasicRHSParser(
+			op -> op.startsWith("o") ? Integer.parseInt(op.substring(1)) : -1,
+			op -> (a, b) -> Math.max(a, b) + 1,
+			l -> { l.next(); return 0; })
+			.useExplicitStack(true);
+		assertEquals(100000, (int) deep.parse(tl));
+		assertTrue(tl.isNext("<EOF>"));
+	}
+	
+	@Test
+	public void testPrimitiveOperatorTables() {
+		TokenScanner t = new TokenScanner()
+			.addOperators("+-*/%()")
+			.appendOnEOF("<EOF>");
+		TokenList[] current = new TokenList[1];
+		OperatorLibrary<Integer> boxed = new OperatorLibrary<>(() -> Integer.parseInt(current[0].nextString()));
+		IntOperatorLibrary ints = new IntOperatorLibrary(tl -> Integer.parseInt(tl.nextString()));
+		LongOperatorLibrary longs = new LongOperatorLibrary(tl -> Long.parseLong(tl.nextString()));
+		DoubleOperatorLibrary doubles = new DoubleOperatorLibrary(tl -> Double.parseDouble(tl.nextString()));
+		boxed.add("+", (a, b) -> a + b);
+		ints.add("+", (a, b) -> a + b);
+		longs.add("+", (a, b) -> a + b);
+		doubles.add("+", (a, b) -> a + b);
+		boxed.add("-", (a, b) -> a - b);
+		ints.add("-", (a, b) -> a - b);
+		longs.add("-", (a, b) -> a - b);
+		doubles.add("-", (a, b) -> a - b);
+		boxed.increaseLevel();
+		ints.increaseLevel();
+		longs.increaseLevel();
+		doubles.increaseLevel();
+		boxed.add("*", (a, b) -> a * b);
+		ints.add("*", (a, b) -> a * b);
+		longs.add("*", (a, b) -> a * b);
+		doubles.add("*", (a, b) -> a * b);
+		boxed.add("%", (a, b) -> a % b);
+		ints.add("%", (a, b) -> a % b);
+		longs.add("%", (a, b) -> a % b);
+		doubles.add("%", (a, b) -> a % b);
+		OperatorPrecedenceParser<Integer> opp = OperatorPrecedenceParser.fromLibrary(boxed);
+		IntOperatorTable intTable = ints.freeze(t);
+		LongOperatorTable longTable = longs.freeze();
+		DoubleOperatorTable doubleTable = doubles.freeze(t);
+
+		String[] ops = { "+", "-", "*", "%" };
+		Random random = new Random(3);
+		for (int n = 0; n < 500; n++) {
+			StringBuilder source = new StringBuilder().append(random.nextInt(20) + 1);
+			for (int k = random.nextInt(6); k > 0; k--)
+				source.append(ops[random.nextInt(4)]).append(random.nextInt(20) + 1);
+			int expected = opp.parse(current[0] = t.tokenize(source.toString(), "<test>"));
+			assertEquals(expected, intTable.applyAsInt(t.tokenize(source.toString(), "<test>")));
+			assertEquals(expected, longTable.applyAsLong(t.tokenize(source.toString(), "<test>")));
+			assertEquals(expected, doubleTable.applyAsDouble(t.tokenize(source.toString(), "<test>")), 0.0);
+		}
+		assertEquals(2, intTable.getPrecedence("*") - intTable.getPrecedence("+") + 1);
+		assertEquals(-1, intTable.getPrecedence("("));
+	}
+	
+	/* Parses arithmetic expressions of the variables x, y and z. The ? operator creates a node
+	   the compiler does not know, evaluated by calling it. */
+	Function<String, Expression> expressions() {
+		TokenScanner t = new TokenScanner()
+			.addOperators("+-*/%^?")
+			.appendOnEOF("<EOF>");
+		TokenList[] current = new TokenList[1];
+		OperatorLibrary<Expression> library = new OperatorLibrary<>(() -> {
+			String token = current[0].nextString();
+			return Character.isDigit(token.charAt(0))
+				? Expression.constant(Double.parseDouble(token))
+				: Expression.variable(token.charAt(0) - 'x');
+		});
+		library.add("+", Expression.operator("+"));
+		library.add("-", Expression.operator("-"));
+		library.increaseLevel();
+		library.add("*", Expression.operator("*"));
+		library.add("/", Expression.operator("/"));
+		library.add("%", Expression.operator("%"));
+		library.increaseLevel();
+		library.add("^", Expression.operator(Math::pow));
+		/* A node the compiler does not know, evaluated by calling it */
+		library.add("?", (a, b) -> new Expression() {
+			@Override
+			public double evaluate(double[] variables) {
+				return a.evaluate(variables) > 0 ? b.evaluate(variables) : 0;
+			}
+		});
+		OperatorPrecedenceParser<Expression> opp = OperatorPrecedenceParser.fromLibrary(library);
+		return source -> opp.parse(current[0] = t.tokenize(source, "<test>"));
+	}
+
+	@Test
+	public void testCompiledExpressions() {
+		Function<String, Expression> parse = expressions();
+
+		Expression tree = parse.apply("x*x-2*y+z/3%2?0.5^x+y*1-0");
+		Expression compiled = tree.compile();
+		if (!System.getProperty("java.specification.version").startsWith("1.")) assertTrue(compiled.isCompiled());
+		assertFalse(tree.isCompiled());
+		assertSame(compiled, compiled.compile());
+		Random random = new Random(4);
+		for (int n = 0; n < 1000; n++) {
+			double[] variables = { random.nextGaussian() * 10, random.nextGaussian() * 10, random.nextGaussian() * 10 };
+			assertEquals(tree.evaluate(variables), compiled.evaluate(variables), 0.0);
+		}
+
+		/* Trees deeper than the generator allows are walked */
+		StringBuilder source = new StringBuilder("x");
+		for (int i = 0; i < 5000; i++) source.append("+1");
+		Expression deep = parse.apply(source.toString());
+		assertSame(deep, deep.compile());
+		assertEquals(5002.0, deep.compile().evaluate(new double[] { 2 }), 0.0);
+	}
+	
+	@Test
+	public void testParseCache() throws InterruptedException {
+		TokenScanner t = new TokenScanner()
+			.addOperators("+")
+			.appendOnEOF("<EOF>");
+		int[] parses = new int[1];
+		Parser<List<String>> parser = tl -> {
+			synchronized (parses) {
+				parses[0]++;
+			}
+			List<String> operands = new ArrayList<>();
+			do operands.add(tl.nextString()); while (tl.acceptIfNext("+"));
+			tl.accept("<EOF>");
+			return operands;
+		};
+
+		ParseCache cache = new ParseCache(3);
+		List<String> first = cache.parse(t, parser, "a+b", "<test>");
+		assertSame(first, cache.parse(t, parser, "a+b", "<test>"));
+		assertEquals(1, parses[0]);
+		assertEquals(1, cache.hitCount());
+		assertEquals(1, cache.missCount());
+
+		/* Other files, parsers and scanner rules are other keys */
+		cache.parse(t, parser, "a+b", "<other>");
+		cache.parse(t, tl -> parser.parse(tl), "a+b", "<test>");
+		t.addOperators("-");
+		assertNotSame(first, cache.parse(t, parser, "a+b", "<test>"));
+		assertEquals(4, parses[0]);
+		assertEquals(3, cache.size());
+		assertEquals(1, cache.evictionCount());
+
+		/* Failures are not remembered */
+		for (int i = 0; i < 2; i++) {
+			try {
+				cache.parse(t, parser, "a b", "<test>");
+				fail();
+			} catch (ParsingException e) {}
+		}
+		assertEquals(6, parses[0]);
+
+		/* The file name may be null */
+		List<String> unnamed = cache.parse(t, parser, "a+b", null);
+		assertSame(unnamed, cache.parse(t, parser, "a+b", null));
+		assertNotSame(unnamed, cache.parse(t, parser, "a+b", "<test>"));
+		assertEquals(7, parses[0]);
+
+		/* LRU keeps the recently used entries */
+		cache.clear();
+		cache.parse(t, parser, "a", "<test>");
+		cache.parse(t, parser, "b", "<test>");
+		cache.parse(t, parser, "c", "<test>");
+		cache.parse(t, parser, "a", "<test>");
+		cache.parse(t, parser, "d", "<test>");
+		parses[0] = 0;
+		cache.parse(t, parser, "a", "<test>");
+		cache.parse(t, parser, "c", "<test>");
+		assertEquals(0, parses[0]);
+		cache.parse(t, parser, "b", "<test>");
+		assertEquals(1, parses[0]);
+
+		/* TinyLFU keeps the frequently used entries when many sources are seen once */
+		ParseCache lfu = new ParseCache(100, ParseCache.Eviction.TINY_LFU);
+		for (int n = 0; n < 10000; n++) {
+			lfu.parse(t, parser, "hot" + n % 20, "<test>");
+			lfu.parse(t, parser, "cold" + n, "<test>");
+		}
+		parses[0] = 0;
+		for (int n = 0; n < 20; n++) lfu.parse(t, parser, "hot" + n, "<test>");
+		assertEquals(0, parses[0]);
+		assertTrue(lfu.size() <= 100);
+
+		/* Concurrent requests of the same source parse it once */
+		Parser<List<String>> slow = tl -> {
+			try {
+				Thread.sleep(100);
+			} catch (InterruptedException e) {}
+			return parser.parse(tl);
+		};
+		parses[0] = 0;
+		Thread[] threads = new Thread[8];
+		Object[] results = new Object[threads.length];
+		for (int i = 0; i < threads.length; i++) {
+			int j = i;
+			threads[i] = new Thread(() -> results[j] = cache.parse(t, slow, "x+y", "<test>"));
+			threads[i].start();
+		}
+		for (Thread thread : threads) thread.join();
+		assertEquals(1, parses[0]);
+		for (Object result : results) assertSame(results[0], result);
+	}
+	
+	@Test
+	public void testColumnEvaluator() {
+		Function<String, Expression> parse = expressions();
+
+		int rows = 300000;
+		Random random = new Random(5);
+		double[] x = new double[rows], y = new double[rows];
+		long[] z = new long[rows];
+		for (int i = 0; i < rows; i++) {
+			x[i] = random.nextGaussian() * 10;
+			y[i] = random.nextDouble();
+			z[i] = random.nextInt(1000) - 500;
+		}
+		for (String source : new String[] { "x*x-2*y+z/3%7-1", "y^2+x?z*0.5", "z*z-x*y", "3", "x+1+1+1+1+1+1+1+1", "2-x/3*y%4", "2*3-1/2+z", "1?2*x" }) {
+			Expression tree = parse.apply(source);
+			double[] result = new double[rows];
+			new ColumnEvaluator(tree.compile()).evaluate(new Object[] { x, y, z }, result);
+			double[] row = new double[3];
+			for (int i = 0; i < rows; i++) {
+				row[0] = x[i];
+				row[1] = y[i];
+				row[2] = z[i];
+				assertEquals(source, tree.evaluate(row), result[i], 0.0);
+			}
+		}
+		Expression sum = parse.apply("x+y*2");
+		assertArrayEquals(new double[] { 7, 9 }, new ColumnEvaluator(sum).evaluate(new double[] { 1, 3 }, new double[] { 3, 3, 3 }), 0.0);
+
+		/* Constants are not stored as vectors */
+		Expression constants = Expression.constant(0);
+		for (int i = 0; i < 200000; i++) constants = Expression.operator("+").apply(constants, Expression.constant(1));
+		assertArrayEquals(new double[] { 200000, 200000 }, new ColumnEvaluator(constants).evaluate(new double[2]), 0.0);
+
+		/* The columns of the variables are checked even if some nodes are evaluated row by row */
+		Expression missing = parse.apply("x?y+z");
+		try {
+			new ColumnEvaluator(missing).evaluate(new Object[] { x, y }, new double[rows]);
+			fail();
+		} catch (IllegalArgumentException e) {}
+	}
+	
+	@Test
+	public void testPatternRules() {
+		TokenScanner t = new TokenScanner()
+			.addPatternRule(Pattern.compile("0x[0-9a-f]+", Pattern.CASE_INSENSITIVE))
+			.addPatternRule(Pattern.compile("[0-9]+"))
+			.addPatternRule(Pattern.compile("\\p{IsGreek}+"))
+			.addOperators("+");
+		TokenList tl = t.tokenize("0XfF+12+\u03B1\u03B2", "<test>");
+		assertEquals("0XfF, +, 12, +, \u03B1\u03B2", joinTokens(tl));
+
+		/* Patterns that define the same group name are not combined */
+		t = new TokenScanner()
+			.addPatternRule(Pattern.compile("a(?<d>[0-9]+)"))
+			.addPatternRule(Pattern.compile("a(?<d>[x-z]+)"))
+			.appendOnEOF("<EOF>");
+		assertEquals("a12, ayz, <EOF>", joinTokens(t.tokenize("a12 ayz", "<test>")));
+	}
+	
+	@Test
+	public void testUnicodeRules() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("\u2192")
+			.addOperatorRule("\u2260")
+			.addOperators("\u2200\uD83D\uDE00")
+			.addStringRule('\u00AB', '\u00BB', '\\')
+			.addCommentRule("\u3010", "\u3011")
+			.addPatternRule(Pattern.compile("[\\x{1D7CE}-\\x{1D7FF}]+"));
+		TokenList tl = t.tokenize("\u2200x\u2192\u6F22\u5B57\u2260\u00AB\u6587\u00BB\u3010\u6CE8\u3011\uD835\uDC65\uD83D\uDE00\uD835\uDFCF\uD835\uDFD0", "<test>");
+		assertEquals("\u2200, x, \u2192, \u6F22\u5B57, \u2260, \u00AB, \u6587, \u00BB, \uD835\uDC65, \uD83D\uDE00, \uD835\uDFCF\uD835\uDFD0", joinTokens(tl));
+		assertEquals(Arrays.asList("\u2192", "\u2260", "\u2200", "\uD83D\uDE00"), t.getOperators());
+	}
+	
+	@Test
+	public void testParallel() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("==")
+			.addOperators("=;")
+			.addCommentRule("/*", "*/")
+			.addStringRule('"', '"', '\\')
+			.appendOnEOF("<EOF>");
+		StringBuilder source = new StringBuilder();
+		for (int i = 0; i < 50000; i++) {
+			source.append("a").append(i).append(" = \"b\\\"").append(i).append("\";\n");
+			if (i % 700 == 0) source.append("/* a\n\n comment */ ");
+			if (i % 900 == 0) source.append("\"a\nstring\" ");
+		}
+		TokenList sequential = t.tokenize(source.toString(), "<test>", 3);
+		TokenList parallel = t.tokenizeParallel(source.toString(), "<test>", 3);
+		assertEquals(joinTokens(sequential), joinTokens(parallel));
+		assertEquals(joinLocations(sequential), joinLocations(parallel));
+
+		/* A comment and a string spanning many chunks */
+		StringBuilder spanning = new StringBuilder("x = 1;\n/*");
+		for (int i = 0; i < 40000; i++) spanning.append(" comment ").append(i).append('\n');
+		spanning.append("*/ y = \"");
+		for (int i = 0; i < 40000; i++) spanning.append(" string ").append(i).append('\n');
+		spanning.append("\";\n");
+		for (int i = 0; i < 20000; i++) spanning.append("z").append(i).append(" = ").append(i).append(";\n");
+		sequential = t.tokenize(spanning.toString(), "<test>");
+		parallel = t.tokenizeParallel(spanning.toString(), "<test>");
+		assertEquals(joinTokens(sequential), joinTokens(parallel));
+		assertEquals(joinLocations(sequential), joinLocations(parallel));
+
+		try {
+			t.tokenizeParallel(source + "\"unterminated\n", "<test>");
+			fail();
+		} catch (ParsingException e) {
+			assertTrue(e.getMessage().contains("EOF in the middle of a string"));
+		}
+	}
+	
+	@Test
+	public void testRetokenize() {
+		TokenScanner t = new TokenScanner()
+			.addOperatorRule("==")
+			.addOperators("=+;")
+			.addCommentRule("/*", "*/")
+			.addStringRule('"', '"', '\\')
+			.addEscapeCode('n', "\n")
+			.appendOnEOF("<EOF>");
+		String[] pieces = { "a", "bc", " ", "\n", "=", "+", ";", "\"", "\\", "n", "/*", "*/", "12" };
+		Random random = new Random(42);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 400; i++) text.append(i % 3 == 0 ? "\n" : " ").append("x").append(i).append(" = y;");
+		String source = text.toString();
+		TokenList tl = t.tokenize(source, "<test>");
+		for (int n = 0; n < 500; n++) {
+			int offset = random.nextInt(source.length() + 1);
+			int removed = random.nextInt(Math.min(4, source.length() - offset) + 1);
+			String inserted = "";
+			for (int k = random.nextInt(3); k > 0; k--) inserted += pieces[random.nextInt(pieces.length)];
+			String newSource = source.substring(0, offset) + inserted + source.substring(offset + removed);
+			
+			TokenList expected;
+			try {
+				expected = t.tokenize(newSource, "<test>");
+			} catch (ParsingException e) {
+				continue;
+			}
+			tl = t.retokenize(tl, source, offset, removed, inserted);
+			assertEquals(joinTokens(expected), joinTokens(tl));
+			assertEquals(joinLocations(expected), joinLocations(tl));
+			source = newSource;
+		}
+
+		/* A pattern rule can read any later text */
+		TokenScanner patterns = new TokenScanner()
+			.addOperators("=")
+			.addPatternRule(Pattern.compile("\"[^\"\\n]*\""), '"');
+		String old = "x = \"hello world foo";
+		TokenList retokenized = patterns.retokenize(patterns.tokenize(old, "<test>"), old, old.length(), 0, "\"");
+		assertEquals("x, =, \"hello world foo\"", joinTokens(retokenized));
+		assertEquals(joinTokens(patterns.tokenize(old + "\"", "<test>")), joinTokens(retokenized));
+	}
+	
 }